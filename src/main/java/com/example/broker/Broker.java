@@ -5,7 +5,9 @@
  *
  * Description: The Broker class represents a message broker that handles publisher-subscriber communication.
  * It maintains topics, manages subscriptions, and facilitates message distribution to subscribers. The class
- * also handles broker-to-broker communication to synchronize messages and topics across the network.
+ * also handles broker-to-broker communication to synchronize messages and topics across the network. Each topic
+ * has a home broker on a consistent-hash ring of the cluster's members, which holds its metadata and decides
+ * creates; other brokers look topics up there and keep what they learn in a cache.
  * 
  * Date: 11/10/2024
  */
@@ -13,40 +15,96 @@
 package com.example.broker;
 
 import com.example.subscriber.Subscriber;
+import com.example.directory.ClusterMap;
 import com.example.directory.DirectoryServiceClient;
 
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
+import java.io.OutputStream;
 import java.io.PrintWriter;
-import java.net.ServerSocket;
+import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.net.URLEncoder;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
 
 public class Broker {
     private final String ownBrokerAddress;  // Store the broker's own address
-    public final ConcurrentHashMap<String, ConcurrentHashMap<String, Subscriber>> topicSubscribers; // topicId -> (username -> Subscriber)
-    public final ConcurrentHashMap<String, String> topicNames; // topicId -> topicName
-    public final ConcurrentHashMap<String, String> topicPublishers;  // topicId -> publisherUsername
+    public final ConcurrentHashMap<String, ConcurrentHashMap<String, Subscriber>> topicSubscribers; // topicId -> (username -> Subscriber), local subscribers only
+    public final ConcurrentHashMap<String, String> topicNames; // topicId -> topicName, of the topics homed here and those cached
+    public final ConcurrentHashMap<String, String> topicPublishers;  // topicId -> publisherUsername, likewise
+    private volatile HashRing ring;  // Topic homes, rebuilt when the membership changes
     private final ConcurrentHashMap<String, String> subscriberUsernames;  // Map username to topicId
     private final Set<String> connectedBrokerAddresses = ConcurrentHashMap.newKeySet(); // Stores connected brokers
-    private final CopyOnWriteArrayList<Socket> connectedBrokers;
     private final ExecutorService connectionPool;
     private final DirectoryServiceClient directoryServiceClient;
-    private final ServerSocket serverSocket;
-    private final CopyOnWriteArrayList<ClientHandler> subClientHandlers;
-    private final CopyOnWriteArrayList<ClientHandler> pubClientHandlers;
+    private final ClusterMap clusterMap;  // Local copy of the directory's membership, pushed to us by the directory
+    private final ServerSocketChannel serverChannel;
+    private final ExecutorService admissionPool;  // Runs handshake admission off the acceptor threads
+    private final ConcurrentHashMap<String, ClientHandler> subClientHandlers; // username -> subscriber ClientHandler
+    private final ConcurrentHashMap<String, ClientHandler> pubClientHandlers; // username -> publisher ClientHandler
+    private final ConcurrentHashMap<String, Set<ClientHandler>> localTopicHandlers; // topicId -> local subscriber connections
+    private final Object interestLock = new Object();  // Orders interest changes against the snapshot sent to a new peer
     private final CopyOnWriteArrayList<BrokerHandler> brokerBrokerHandlers;
     
-    private boolean isLocked;
     private int TOTAL_SUB_LIMIT = 10;
     private int TOTAL_PUB_LIMIT = 5;
+    private static final long RPC_TIMEOUT_MS = 1000;  // Deadline for a reply to a broker-to-broker request
+    private static final long QUOTA_WAIT_MS = 500;  // How long a handshake waits for a loan when the local quota is used up
+    private static final long QUOTA_REBALANCE_INTERVAL_MS = 500;
+    private final QuotaLease subscriberQuota;  // This broker's lease on TOTAL_SUB_LIMIT
+    private final QuotaLease publisherQuota;   // This broker's lease on TOTAL_PUB_LIMIT
+    private final ScheduledExecutorService maintenanceScheduler;
+    private int quotaPeerCursor;  // Rotates background quota requests over the peers
+    private final ClusterCounters clusterCounters;  // Gossiped cluster-wide connection and subscription counts
+    private static final long GOSSIP_INTERVAL_MS = Long.getLong("broker.gossipIntervalMs", 200);
+    private static final int MAX_COUNTERS_PER_GOSSIP = 1024;
+    private static final int MAX_TOPICS_PER_OPERATION = 1024;
+    private static final String LOG_DIRECTORY = System.getProperty("broker.logDir");  // Message history is kept only if set
+    private static final long LOG_FLUSH_INTERVAL_MS = Long.getLong("broker.logFlushMs", 1000);
+    private final Path topicLogDirectory;  // This broker's directory under broker.logDir, or null
+    private final ConcurrentHashMap<String, TopicLog> topicLogs;  // topicId -> message history
+    private final ConcurrentHashMap<String, TopicHistory> topicHistories;  // topicId -> recent messages, also the topic's delivery lock
+    private final ConcurrentHashMap<String, byte[]> topicHeaders;  // topicId -> encoded " topicId:topicName: Message Received (seq "
+    private final ClockCache clock;
+    private static final long SLOW_CONSUMER_REPORT_MS = Long.getLong("broker.slowConsumerReportMs", 10000);
+    private static final long LOAD_REPORT_INTERVAL_MS = Long.getLong("broker.loadReportMs", 1000);
+    private static final long HEARTBEAT_INTERVAL_MS = Long.getLong("broker.heartbeatMs", 1000);  // Well within the directory's lease
+    private static final int PEER_CONNECT_TIMEOUT_MS = Integer.getInteger("broker.connectTimeoutMs", 1000);
+    private static final long REDIAL_BACKOFF_MS = Long.getLong("broker.redialBackoffMs", 1000);  // Between dials to a peer that failed
+    private static final int RING_POINTS_PER_BROKER = Integer.getInteger("broker.ringPoints", 128);
+    private static final int TOPIC_COPIES = Integer.getInteger("broker.topicCopies", 2);  // The home and its successors
+    private static final long PUBLISHER_GRACE_MS = Long.getLong("broker.publisherGraceMs", 3000);  // Before a lost publisher's topics are deleted
+    private static final long PRODUCER_IDLE_MS = Long.getLong("broker.producerIdleMs", 600000);  // How long a producer's watermark is kept
+    private final ProducerDedup producerDedup;
+    private final Map<String, Long> redialNotBefore = new ConcurrentHashMap<>();  // Peer address -> earliest next dial
+    private static final int REDIRECT_MARGIN = Integer.getInteger("broker.redirectMargin", 8);  // 0 turns handshake redirects off
+    private final LongAdder publishedMessages;  // Messages fanned out here, local or forwarded, for the load report
+    private long lastLoadReportAt;
+    private long lastPublishedCount;
+    private static final int MAX_RESUME_ROUNDS = 8;  // Catch-up rounds outside the topic's lock before a resume finishes under it
+    private static final long RESUME_WINDOW_MS = Long.getLong("broker.resumeWindowMs", 60000);  // How long a topic's history outlives its last local subscriber
+    private static final int ACCEPTOR_THREADS = Integer.getInteger("broker.acceptors", 1);
+    private static final int ADMISSION_THREADS = Integer.getInteger("broker.admissionThreads", 8);
+    private static final String THREAD_MODE = System.getProperty("broker.threads", "platform");  // "platform" or "virtual"
 
 
     public Broker(int port, String directoryServiceAddress) throws IOException {
@@ -54,62 +112,141 @@ public class Broker {
         this.topicNames = new ConcurrentHashMap<>();
         this.topicPublishers = new ConcurrentHashMap<>();
         this.subscriberUsernames = new ConcurrentHashMap<>();
-        this.connectedBrokers = new CopyOnWriteArrayList<>();
-        this.connectionPool = Executors.newCachedThreadPool();
+        this.connectionPool = createConnectionPool();
         this.directoryServiceClient = new DirectoryServiceClient(directoryServiceAddress);
-        this.serverSocket = new ServerSocket(port);
-        this.ownBrokerAddress = serverSocket.getInetAddress().getHostAddress() + ":" + port;
-        this.subClientHandlers = new CopyOnWriteArrayList<>();
-        this.pubClientHandlers = new CopyOnWriteArrayList<>();
+        this.clusterMap = new ClusterMap();
+        // Bind the IPv4 wildcard so the advertised address keeps the plain ip:port form other brokers parse
+        InetSocketAddress bindAddress = new InetSocketAddress("0.0.0.0", port);
+        this.serverChannel = ServerSocketChannel.open();
+        this.serverChannel.bind(bindAddress);
+        this.admissionPool = Executors.newFixedThreadPool(ADMISSION_THREADS);
+        this.ownBrokerAddress = bindAddress.getAddress().getHostAddress() + ":" + port;
+        this.subClientHandlers = new ConcurrentHashMap<>();
+        this.pubClientHandlers = new ConcurrentHashMap<>();
+        this.localTopicHandlers = new ConcurrentHashMap<>();
         this.brokerBrokerHandlers = new CopyOnWriteArrayList<>();
-        this.isLocked = false;
+        this.subscriberQuota = new QuotaLease("subscriber", TOTAL_SUB_LIMIT);
+        this.publisherQuota = new QuotaLease("publisher", TOTAL_PUB_LIMIT);
+        this.maintenanceScheduler = Executors.newSingleThreadScheduledExecutor();
+        this.clusterCounters = new ClusterCounters(ownBrokerAddress);
+        this.topicLogDirectory = LOG_DIRECTORY == null ? null : Paths.get(LOG_DIRECTORY, "broker-" + port);
+        this.topicLogs = new ConcurrentHashMap<>();
+        this.topicHistories = new ConcurrentHashMap<>();
+        this.topicHeaders = new ConcurrentHashMap<>();
+        this.clock = new ClockCache();
+        this.publishedMessages = new LongAdder();
+        this.producerDedup = new ProducerDedup(PRODUCER_IDLE_MS);
+        this.ring = new HashRing(Collections.singleton(ownBrokerAddress), RING_POINTS_PER_BROKER);  // Until the first snapshot
+        this.lastLoadReportAt = System.currentTimeMillis();
         System.out.println("Broker started on port: " + port);
 
         // Register the broker with the directory service
         directoryServiceClient.registerBroker(ownBrokerAddress);
         System.out.println("Broker registered with Directory Service at: " + directoryServiceAddress);
+
+        // Follow membership changes from the directory instead of polling it on every request
+        clusterMap.addListener(new ClusterMap.Listener() {
+            @Override
+            public void onBrokerAdded(String brokerAddress, boolean joinedNow) {
+                if (brokerAddress.equals(ownBrokerAddress)) {
+                    if (joinedNow) {
+                        // Our lease had expired and a heartbeat registered us again; the peers dropped their links
+                        connectionPool.submit(() -> updateConnectedBrokers());
+                    }
+                } else if (dialsTo(brokerAddress)) {
+                    // Of each pair only the broker with the lower address dials, so the pair shares one link
+                    connectionPool.submit(() -> connectToBroker(brokerAddress));
+                }
+                rebuildRing();
+                rebalanceQuotas();
+            }
+
+            @Override
+            public void onBrokerRemoved(String brokerAddress) {
+                redialNotBefore.remove(brokerAddress);
+                disconnectBroker(brokerAddress);
+                rebuildRing();
+                rebalanceQuotas();
+                clusterCounters.retainBrokers(clusterMap.getBrokers());
+            }
+        });
+        directoryServiceClient.watchMembership(clusterMap);
+        maintenanceScheduler.scheduleWithFixedDelay(this::requestSpareQuota,
+                QUOTA_REBALANCE_INTERVAL_MS, QUOTA_REBALANCE_INTERVAL_MS, TimeUnit.MILLISECONDS);
+        maintenanceScheduler.scheduleWithFixedDelay(this::gossipCounters,
+                GOSSIP_INTERVAL_MS, GOSSIP_INTERVAL_MS, TimeUnit.MILLISECONDS);
+        maintenanceScheduler.scheduleWithFixedDelay(this::heartbeat,
+                HEARTBEAT_INTERVAL_MS, HEARTBEAT_INTERVAL_MS, TimeUnit.MILLISECONDS);
+        maintenanceScheduler.scheduleWithFixedDelay(this::reportLoad,
+                LOAD_REPORT_INTERVAL_MS, LOAD_REPORT_INTERVAL_MS, TimeUnit.MILLISECONDS);
+        maintenanceScheduler.scheduleWithFixedDelay(producerDedup::evictIdle,
+                PRODUCER_IDLE_MS / 10, PRODUCER_IDLE_MS / 10, TimeUnit.MILLISECONDS);
+        maintenanceScheduler.scheduleWithFixedDelay(this::reportSlowConsumers,
+                SLOW_CONSUMER_REPORT_MS, SLOW_CONSUMER_REPORT_MS, TimeUnit.MILLISECONDS);
+        if (topicLogDirectory != null) {
+            System.out.println("Keeping message history in: " + topicLogDirectory);
+            maintenanceScheduler.scheduleWithFixedDelay(this::flushTopicLogs,
+                    LOG_FLUSH_INTERVAL_MS, LOG_FLUSH_INTERVAL_MS, TimeUnit.MILLISECONDS);
+        }
     }
 
 
+    // Connection handlers block on socket I/O; in virtual mode each one gets a virtual thread instead of a platform thread
+    private static ExecutorService createConnectionPool() {
+        if ("virtual".equals(THREAD_MODE)) {
+            System.out.println("Running connection handlers on virtual threads.");
+            return Executors.newVirtualThreadPerTaskExecutor();
+        }
+        return Executors.newCachedThreadPool();
+    }
+
     public void start() {
+        // Redial links we own that broke while both brokers stayed up
+        maintenanceScheduler.scheduleWithFixedDelay(this::updateConnectedBrokers,
+                HEARTBEAT_INTERVAL_MS, HEARTBEAT_INTERVAL_MS, TimeUnit.MILLISECONDS);
+
         try {
-            while (true) {
-                Socket clientSocket = serverSocket.accept();
-                BufferedReader in = new BufferedReader(new InputStreamReader(clientSocket.getInputStream()));
-                PrintWriter out = new PrintWriter(clientSocket.getOutputStream(), true);
-
-                // Perform handshake before any further communication
-                if (!waitForHandshake(in, out, clientSocket)) {
-                    System.out.println("Handshake failed, closing connection.");
-                    clientSocket.close();
-                    continue;
-                }
+            serverChannel.configureBlocking(false);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return;
+        }
 
-                // At this point, the handshake is complete, and the client is identified
-                System.out.println("Handshake successful!");
+        // Acceptors only accept and read HANDSHAKE_INIT; admission runs on the admission pool
+        for (int i = 1; i < ACCEPTOR_THREADS; i++) {
+            new Thread(new HandshakeAcceptor(serverChannel, this, admissionPool), "acceptor-" + i).start();
+        }
+        new HandshakeAcceptor(serverChannel, this, admissionPool).run();
+    }
+
+    // Admit a connection whose HANDSHAKE_INIT has already been read; runs on the admission pool
+    public void admitConnection(Socket clientSocket, String handshakeInit) {
+        try {
+            PrintWriter out = new PrintWriter(clientSocket.getOutputStream(), true);
 
-                // The client type and username have already been captured in waitForHandshake,
-                // and now we handle client logic based on the connection type.
+            if (!handleHandshake(handshakeInit, out, clientSocket)) {
+                System.out.println("Handshake failed, closing connection.");
+                clientSocket.close();
+                return;
             }
+
+            // At this point, the handshake is complete, and the client is identified
+            System.out.println("Handshake successful!");
         } catch (IOException e) {
-            e.printStackTrace();
+            System.err.println("Error admitting connection: " + e.getMessage());
         }
     }
 
-    private boolean waitForHandshake(BufferedReader in, PrintWriter out, Socket clientSocket) throws IOException {
-        System.out.println("Waiting for HANDSHAKE_INIT from client...");
-    
-        // Receive the handshake initiation
-        String handshakeInit = in.readLine();
-        if (handshakeInit == null || !handshakeInit.startsWith("HANDSHAKE_INIT")) {
+    private boolean handleHandshake(String handshakeInit, PrintWriter out, Socket clientSocket) {
+        if (!handshakeInit.startsWith("HANDSHAKE_INIT")) {
             System.err.println("Invalid handshake initiation from client. Should recerive HANDSHAKE_INIT but we got " + handshakeInit);
             return false;
         }
     
-        // Extract the username (or broker address) and connection type from the message
-        String[] parts = handshakeInit.split(" ", 3);
-        if (parts.length != 3 || !"HANDSHAKE_INIT".equals(parts[0])) {
-            System.err.println("Invalid handshake format. Expected: HANDSHAKE_INIT <username> <connectionType>");
+        // Extract the username (or broker address), connection type and any options from the message
+        String[] parts = handshakeInit.split(" ");
+        if (parts.length < 3 || !"HANDSHAKE_INIT".equals(parts[0])) {
+            System.err.println("Invalid handshake format. Expected: HANDSHAKE_INIT <username> <connectionType> [options]");
             return false;
         }
     
@@ -119,43 +256,53 @@ public class Broker {
     
         // Depending on the connection type, handle the client or broker connection
         if ("broker".equals(connectionType)) {
-            System.out.println("Broker connected: " + username);
-            // Add broker to the list of connected brokers
-            connectedBrokers.add(clientSocket);
-            connectedBrokerAddresses.add(username);
-            // Submit the broker to the broker handler for further processing
-            BrokerHandler brokerHandler = new BrokerHandler(clientSocket, this, username);
-            brokerBrokerHandlers.add(brokerHandler);
-            connectionPool.submit(brokerHandler);
+            // A broker offering a link version gets the highest version both sides speak; older brokers stay on text
+            int linkVersion = parts.length > 3 ? Math.min(parseLinkVersion(parts[3]), BrokerLink.LATEST_VERSION) : BrokerLink.TEXT_VERSION;
+            if (dialsTo(username)) {
+                // We own this pair's link, so the peer should not be dialling; only an older broker or a race with
+                // a lost link gets here, and it may use the link only if there is none yet
+                if (!connectedBrokerAddresses.add(username)) {
+                    out.println("HANDSHAKE_REJECT duplicate link");
+                    out.flush();
+                    System.out.println("Rejected duplicate link from broker " + username);
+                    return false;
+                }
+            } else {
+                // The peer owns the link; a new dial means it lost the old one, which may not have noticed yet here
+                connectedBrokerAddresses.add(username);
+                closeBrokerLinks(username);
+            }
+            BrokerHandler brokerHandler;
+            try {
+                brokerHandler = new BrokerHandler(clientSocket, this, username, linkVersion);
+            } catch (IOException e) {
+                System.err.println("Error opening link to broker " + username + ": " + e.getMessage());
+                connectedBrokerAddresses.remove(username);
+                return false;
+            }
+
+            // Acknowledge before the link is registered, so no broker operation can reach the peer ahead of the ACK
+            out.println(parts.length > 3 ? "HANDSHAKE_ACK " + linkVersion : "HANDSHAKE_ACK");
+            out.flush();
+            System.out.println("Broker connected: " + username + " (link version " + linkVersion + ")");
+
+            addBrokerHandler(brokerHandler);
+            return true;
         } else if ("publisher".equals(connectionType) || "subscriber".equals(connectionType)) {
+            // A client that understands redirects is sent on to a clearly less loaded broker
+            String redirectTarget = Arrays.asList(parts).subList(3, parts.length).contains("redirect") ? findRedirectTarget() : null;
+            if (redirectTarget != null) {
+                out.println("HANDSHAKE_REDIRECT " + redirectTarget);
+                out.flush();
+                System.out.println("Redirected " + connectionType + " " + username + " to less loaded broker " + redirectTarget);
+                return false;
+            }
+
             // Handle publisher or subscriber connection
             ClientHandler clientHandler = new ClientHandler(clientSocket, this, username, connectionType);
             
-            if ("subscriber".equals(connectionType)) {
-                boolean lock = requestLockFromAllBrokers();
-                if (!lock) {
-                    //out.println("Handshake refused, failed to acquire lock");
-                    return false;
-                }
-
-                if (getTotalSubscriberCount() >= TOTAL_SUB_LIMIT) {
-                    releaseLockFromAllBrokers();
-                    return false;
-                }
-                subClientHandlers.add(clientHandler);
-                releaseLockFromAllBrokers();
-            } else if ("publisher".equals(connectionType)) {
-                boolean lock = requestLockFromAllBrokers();
-                if (!lock) {
-                    //out.println("Handshake refused, failed to acquire lock");
-                    return false;
-                }
-                if (getTotalPublisherCount() >= TOTAL_PUB_LIMIT) {
-                    releaseLockFromAllBrokers();
-                    return false;
-                }
-                pubClientHandlers.add(clientHandler);
-                releaseLockFromAllBrokers();
+            if (!registerClient(username, connectionType, clientHandler)) {
+                return false;
             }
             connectionPool.submit(clientHandler);
             System.out.println("Client connected as: " + connectionType);
@@ -174,39 +321,512 @@ public class Broker {
     }
     
 
-    public void createTopic(String username, String topicId, String topicName) {
-        if (!topicNames.containsKey(topicId)) {
-            topicSubscribers.putIfAbsent(topicId, new ConcurrentHashMap<>());
-            topicNames.put(topicId, topicName);
-            topicPublishers.put(topicId, username);
-            System.out.println(username + " created topic: " + topicName + " (ID: " + topicId + ")");
-    
-            // Synchronize the newly created topic with all brokers, passing the username
-            synchronizeTopic(username, topicId, topicName);
-        } else {
-            System.out.println("Topic already exists: " + topicNames.get(topicId));
+    // The connected peer with the fewest client connections, if it has at least REDIRECT_MARGIN fewer than this
+    // broker; the counts come from the gossiped connection counters
+    private String findRedirectTarget() {
+        if (REDIRECT_MARGIN <= 0) {
+            return null;
+        }
+        Map<String, Long> connections = clusterCounters.getByBroker(ClusterCounters.SUBSCRIBERS);
+        for (Map.Entry<String, Long> publishers : clusterCounters.getByBroker(ClusterCounters.PUBLISHERS).entrySet()) {
+            connections.merge(publishers.getKey(), publishers.getValue(), Long::sum);
         }
+
+        long ownConnections = connections.getOrDefault(ownBrokerAddress, 0L);
+        String target = null;
+        long targetConnections = ownConnections - REDIRECT_MARGIN;
+        for (BrokerHandler brokerHandler : brokerBrokerHandlers) {
+            long peerConnections = connections.getOrDefault(brokerHandler.getBrokerAddress(), 0L);
+            if (peerConnections <= targetConnections) {
+                target = brokerHandler.getBrokerAddress();
+                targetConnections = peerConnections;
+            }
+        }
+        return target;
     }
-    
+
+    // Renew our registration lease; like the load report it talks to the directory, so keep it off the maintenance thread
+    private void heartbeat() {
+        connectionPool.submit(() -> directoryServiceClient.heartbeat(ownBrokerAddress));
+    }
+
+    // Leave the cluster cleanly, so peers and clients stop using this broker at once instead of after the lease runs out
+    public void shutdown() {
+        System.out.println("Broker shutting down, deregistering " + ownBrokerAddress);
+        maintenanceScheduler.shutdownNow();
+        directoryServiceClient.deregisterBroker(ownBrokerAddress);
+    }
+
+    // Tell the directory how busy this broker is, so it can rank brokers for new clients
+    private void reportLoad() {
+        long now = System.currentTimeMillis();
+        long published = publishedMessages.sum();
+        long publishRate = (published - lastPublishedCount) * 1000 / Math.max(1, now - lastLoadReportAt);
+        lastPublishedCount = published;
+        lastLoadReportAt = now;
+
+        int connections = subClientHandlers.size() + pubClientHandlers.size();
+        long queueDepth = 0;
+        for (ClientHandler clientHandler : subClientHandlers.values()) {
+            queueDepth += clientHandler.getOutbound().getQueueDepth();
+        }
+        for (BrokerHandler brokerHandler : brokerBrokerHandlers) {
+            queueDepth += brokerHandler.getQueueDepth();
+        }
+        long depth = queueDepth;
+        // The report opens a connection, so keep it off the maintenance thread
+        connectionPool.submit(() -> directoryServiceClient.reportLoad(ownBrokerAddress, connections, depth, publishRate));
+    }
+
+    // Take a unit of this broker's quota lease and register the client
+    private boolean registerClient(String username, String connectionType, ClientHandler clientHandler) {
+        boolean subscriber = "subscriber".equals(connectionType);
+        QuotaLease quota = subscriber ? subscriberQuota : publisherQuota;
+        ConcurrentHashMap<String, ClientHandler> handlers = subscriber ? subClientHandlers : pubClientHandlers;
+
+        if (!acquireQuota(quota)) {
+            System.err.println("Refusing " + connectionType + " " + username + ": cluster limit reached.");
+            return false;
+        }
+        // Usernames key the local registry, so a second live connection under the same name is refused
+        if (handlers.putIfAbsent(username, clientHandler) != null) {
+            System.err.println(connectionType + " already connected with username: " + username);
+            quota.release();
+            return false;
+        }
+        clusterCounters.increment(subscriber ? ClusterCounters.SUBSCRIBERS : ClusterCounters.PUBLISHERS);
+        return true;
+    }
+
+    private boolean acquireQuota(QuotaLease quota) {
+        // Normally the local lease has room and admission needs no network round trip
+        if (quota.tryAcquire()) {
+            return true;
+        }
+
+        // Otherwise ask every peer to lend us spare units and wait briefly for one to arrive
+        for (BrokerHandler brokerHandler : brokerBrokerHandlers) {
+            requestQuotaLoan(brokerHandler, quota, 1, "urgent");
+        }
+        try {
+            return quota.tryAcquire(QUOTA_WAIT_MS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    private void rebalanceQuotas() {
+        List<String> members = new ArrayList<>(clusterMap.getBrokers());
+        Collections.sort(members);
+        subscriberQuota.rebalance(members, ownBrokerAddress);
+        publisherQuota.rebalance(members, ownBrokerAddress);
+    }
+
+    // Background rebalancing: loans close to expiring are renewed for the units still in use, a broker short of
+    // units borrows from one peer per round, and a broker whose share grew checks whether it may use the new units yet
+    private void requestSpareQuota() {
+        List<BrokerHandler> peers = new ArrayList<>(brokerBrokerHandlers);
+        for (QuotaLease quota : new QuotaLease[] { subscriberQuota, publisherQuota }) {
+            if (quota.getHeldBack() > 0) {
+                checkHeldBackQuota(quota, peers);
+            }
+            for (Map.Entry<String, Integer> renewal : quota.takeRenewals().entrySet()) {
+                BrokerHandler lender = linkTo(renewal.getKey());
+                if (lender != null) {
+                    renewQuotaLoan(lender, quota, renewal.getValue());
+                }  // Otherwise the loan runs out; our count already stopped at what we meant to keep
+            }
+            int shortfall = quota.shortfall();
+            if (shortfall > 0 && !peers.isEmpty()) {
+                BrokerHandler peer = peers.get(Math.floorMod(quotaPeerCursor++, peers.size()));
+                requestQuotaLoan(peer, quota, shortfall, "background");
+            }
+        }
+    }
+
+    // Ask every peer how many connections it holds above its share of the current membership; once all of them
+    // have answered for the same membership, only that many units stay held back
+    private void checkHeldBackQuota(QuotaLease quota, List<BrokerHandler> peers) {
+        int members = quota.getMemberCount();
+        if (peers.size() < members - 1) {
+            return;  // Not linked to every peer yet
+        }
+        CompletableFuture<Integer> peerExcess = CompletableFuture.completedFuture(0);
+        for (BrokerHandler peer : peers) {
+            CompletableFuture<String[]> reply = peer.request(RPC_TIMEOUT_MS, "quota_status", quota.getKind(), String.valueOf(members));
+            // A peer that has not seen the same membership yet answers -1, which keeps the whole sum negative
+            peerExcess = peerExcess.thenCombine(reply, (sum, fields) -> {
+                int excess = Integer.parseInt(fields[0]);
+                return sum < 0 || excess < 0 ? -1 : sum + excess;
+            });
+        }
+        peerExcess.thenAccept(excess -> {
+            if (excess >= 0 && quota.getMemberCount() == members) {
+                quota.releaseHeldBack(excess);
+            }
+        }).exceptionally(e -> null);  // Try again next round
+    }
+
+    private void requestQuotaLoan(BrokerHandler peer, QuotaLease quota, int units, String priority) {
+        String lender = peer.getBrokerAddress();
+        long requestedAt = System.currentTimeMillis();
+        quota.requestSent(lender);
+        peer.request(RPC_TIMEOUT_MS, "quota_request", quota.getKind(), String.valueOf(units), priority)
+                .thenAccept(fields -> quota.addBorrowed(lender, Integer.parseInt(fields[0]), requestedAt))
+                .whenComplete((result, e) -> quota.requestDone(lender))
+                .exceptionally(e -> null);  // No loan this time; an unconfirmed grant expires on the lender's side
+    }
+
+    private void renewQuotaLoan(BrokerHandler peer, QuotaLease quota, int keep) {
+        long requestedAt = System.currentTimeMillis();
+        peer.request(RPC_TIMEOUT_MS, "quota_renew", quota.getKind(), String.valueOf(keep))
+                .thenAccept(fields -> quota.renewed(peer.getBrokerAddress(), Integer.parseInt(fields[0]), requestedAt))
+                .exceptionally(e -> null);  // Tried again next round while the loan lasts
+    }
+
+    // A peer asked for spare units; returns how many we lend it
+    public int lendQuota(String peerAddress, String kind, int requested, boolean urgent) {
+        QuotaLease quota = "subscriber".equals(kind) ? subscriberQuota : publisherQuota;
+        // Background requests only get units we can spare without emptying our own lease
+        return urgent ? quota.lend(peerAddress, requested) : quota.lend(peerAddress, Math.min(requested, quota.spare() / 2));
+    }
+
+    // A borrower renews its loan from us, keeping up to keep units; returns the units it still borrows
+    public int renewQuota(String peerAddress, String kind, int keep) {
+        QuotaLease quota = "subscriber".equals(kind) ? subscriberQuota : publisherQuota;
+        return quota.renew(peerAddress, keep);
+    }
+
+    // A peer whose share grew asks how many connections we hold above ours
+    public int quotaExcess(String kind, int members) {
+        QuotaLease quota = "subscriber".equals(kind) ? subscriberQuota : publisherQuota;
+        return quota.excess(members);
+    }
+
+    // Send the counters changed since the last round to every peer; each broker only reports its own changes,
+    // and a peer that connects later gets the full set when its link opens
+    private void gossipCounters() {
+        List<String> changed = clusterCounters.drainChanged();
+        if (changed.isEmpty()) {
+            return;
+        }
+        for (BrokerHandler brokerHandler : brokerBrokerHandlers) {
+            sendCounters(brokerHandler, changed);
+        }
+    }
+
+    private void sendCounters(BrokerHandler brokerHandler, List<String> fields) {
+        for (int start = 0; start < fields.size(); start += MAX_COUNTERS_PER_GOSSIP) {
+            List<String> chunk = fields.subList(start, Math.min(fields.size(), start + MAX_COUNTERS_PER_GOSSIP));
+            String[] operation = new String[chunk.size() + 1];
+            operation[0] = "counter_gossip";
+            for (int i = 0; i < chunk.size(); i++) {
+                operation[i + 1] = chunk.get(i);
+            }
+            brokerHandler.send(operation);
+        }
+    }
+
+    // counter_gossip <field>..., one field per counter
+    public void mergeCounters(String[] parts) {
+        Set<String> members = clusterMap.getBrokers();
+        for (int i = 1; i < parts.length; i++) {
+            try {
+                clusterCounters.merge(parts[i], members);
+            } catch (NumberFormatException e) {
+                System.err.println("Invalid counter gossip: " + parts[i]);
+            }
+        }
+    }
+
+    // Record a delivered line in the topic's history, if this broker keeps one
+    private void appendToTopicLog(String topicId, byte[] line) {
+        if (topicLogDirectory == null) {
+            return;
+        }
+        try {
+            openTopicLog(topicId).append(line);
+        } catch (IOException e) {
+            System.err.println("Error appending to history of topic " + topicId + ": " + e.getMessage());
+        }
+    }
+
+    // Collect the file ranges holding the topic's history from fromOffset on; returns the offset after them,
+    // or -1 if this broker keeps no history
+    public long readTopicLog(String topicId, long fromOffset, List<FileRegion> regions) {
+        if (topicLogDirectory == null) {
+            return -1;
+        }
+        try {
+            TopicLog topicLog;
+            TopicHistory history = topicHistory(topicId);
+            synchronized (history) {
+                if (!isCurrentTopic(topicId, history)) {
+                    return fromOffset;  // Deleted meanwhile, along with its log
+                }
+                topicLog = openTopicLog(topicId);
+            }
+            return topicLog.read(fromOffset, regions);
+        } catch (IOException e) {
+            System.err.println("Error reading history of topic " + topicId + ": " + e.getMessage());
+            return -1;
+        }
+    }
+
+    private TopicLog openTopicLog(String topicId) throws IOException {
+        TopicLog topicLog = topicLogs.get(topicId);
+        if (topicLog != null) {
+            return topicLog;
+        }
+        synchronized (topicLogs) {
+            topicLog = topicLogs.get(topicId);
+            if (topicLog == null) {
+                // Topic ids come from clients, so encode them before using one as a directory name
+                topicLog = new TopicLog(topicLogDirectory.resolve(URLEncoder.encode(topicId, "UTF-8")));
+                topicLogs.put(topicId, topicLog);
+            }
+            return topicLog;
+        }
+    }
+
+    private void flushTopicLogs() {
+        for (TopicLog topicLog : topicLogs.values()) {
+            try {
+                topicLog.flush();
+            } catch (IOException e) {
+                System.err.println("Error flushing message history: " + e.getMessage());
+            }
+        }
+    }
+
+    // Log the lag of every subscriber and peer link that is still behind, so one stuck connection is easy to spot
+    private void reportSlowConsumers() {
+        for (Map.Entry<String, ClientHandler> entry : subClientHandlers.entrySet()) {
+            OutboundWriter outbound = entry.getValue().getOutbound();
+            if (outbound.isSlow()) {
+                System.out.println("Subscriber " + entry.getKey() + " is behind: " + outbound.getMetrics());
+            }
+        }
+        for (BrokerHandler brokerHandler : brokerBrokerHandlers) {
+            if (brokerHandler.isBehind()) {
+                System.out.println("Broker " + brokerHandler.getBrokerAddress() + " is behind: depth " + brokerHandler.getQueueDepth());
+            }
+        }
+    }
+
+    // Run a long-lived task, such as a connection's writer, on the broker's connection pool
+    public void submitTask(Runnable task) {
+        connectionPool.submit(task);
+    }
+
+    // Create a topic at its home broker, which decides between concurrent creates; returns false if it already
+    // exists. If the home is unreachable the next broker on the ring, which takes over when a home leaves, is
+    // used instead. Throws IllegalStateException if none can be reached.
+    public boolean createTopic(String username, String topicId, String topicName) {
+        List<String> homes = topicHomes(topicId);
+        for (String home : homes) {
+            if (home.equals(ownBrokerAddress)) {
+                if (!storeTopic(username, topicId, topicName)) {
+                    System.out.println("Topic already exists: " + topicNames.get(topicId));
+                    return false;
+                }
+                System.out.println(username + " created topic: " + topicName + " (ID: " + topicId + ")");
+                replicateTopic(topicId, homes);
+                return true;
+            }
+
+            String[] reply = askHome(home, "topic_create", topicId, topicName, username);
+            if (reply == null) {
+                continue;
+            }
+            if ("created".equals(reply[0])) {
+                createSimpleTopic(username, topicId, topicName);  // Cached for this broker's publisher and subscribers
+                System.out.println(username + " created topic " + topicId + " at its home broker " + home);
+                return true;
+            }
+            if ("exists".equals(reply[0]) && reply.length == 3) {
+                createSimpleTopic(reply[2], topicId, reply[1]);
+            }
+            return false;
+        }
+        throw new IllegalStateException("No home broker of topic " + topicId + " is reachable, try again.");
+    }
+
+    // Known here, or found at the topic's home broker (or the next one on the ring) and cached
     public boolean topicExists(String topicId) {
-        return topicNames.containsKey(topicId);
+        if (topicNames.containsKey(topicId)) {
+            return true;
+        }
+        for (String home : topicHomes(topicId)) {
+            if (home.equals(ownBrokerAddress)) {
+                return false;  // We would hold it
+            }
+            String[] reply = askHome(home, "topic_lookup", topicId);
+            if (reply != null) {
+                if ("found".equals(reply[0]) && reply.length == 3) {
+                    createSimpleTopic(reply[2], topicId, reply[1]);
+                    return true;
+                }
+                return false;
+            }
+        }
+        return false;
     }
-    
+
     public boolean isTopicOwner(String topicId, String username) {
         String owner = topicPublishers.get(topicId);
         return owner != null && owner.equals(username);
     }
-    
 
-    // Only add topic topicid topicname, no further function call, will be used in handlesynchronized
-    public void createSimpleTopic(String username, String topicId, String topicName) {
-        // Ensure the topicId does not already exist
-        if (!topicNames.containsKey(topicId)) {
-            // Store the topicId, topicName, and associated publisher username
+    // The topic's home broker followed by the brokers that hold a copy to take over from it
+    private List<String> topicHomes(String topicId) {
+        return ring.homesOf(topicId, TOPIC_COPIES);
+    }
+
+    // Send a request to a home broker and wait for its reply fields; null if it could not be reached in time
+    private String[] askHome(String home, String... operation) {
+        BrokerHandler homeLink = linkTo(home);
+        if (homeLink == null) {
+            System.out.println("No link to home broker " + home + " for " + operation[0]);
+            updateConnectedBrokers();
+            return null;
+        }
+        try {
+            return homeLink.request(RPC_TIMEOUT_MS, operation).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        } catch (ExecutionException e) {
+            System.out.println("Request " + operation[0] + " to home broker " + home + " failed: " + e.getCause().getMessage());
+            return null;
+        }
+    }
+
+    private BrokerHandler linkTo(String brokerAddress) {
+        for (BrokerHandler brokerHandler : brokerBrokerHandlers) {
+            if (brokerHandler.getBrokerAddress().equals(brokerAddress)) {
+                return brokerHandler;
+            }
+        }
+        return null;
+    }
+
+    // topic_create, answered by a home broker: "created", or "exists" with the existing topic's name and owner
+    public String[] handleTopicCreate(String topicId, String topicName, String username) {
+        if (storeTopic(username, topicId, topicName)) {
+            System.out.println(username + " created topic: " + topicName + " (ID: " + topicId + ")");
+            replicateTopic(topicId, topicHomes(topicId));
+            return new String[] { "created" };
+        }
+        return new String[] { "exists", topicNames.get(topicId), topicPublishers.get(topicId) };
+    }
+
+    // topic_lookup, answered by a home broker: "found" with the topic's name and owner, or "none"
+    public String[] handleTopicLookup(String topicId) {
+        String topicName = topicNames.get(topicId);
+        String owner = topicPublishers.get(topicId);
+        return topicName != null && owner != null ? new String[] { "found", topicName, owner } : new String[] { "none" };
+    }
+
+    // topic_list [<afterTopicId>]: id, name and owner of the topics homed here, including the copies held for
+    // another home, in topic ID order after afterTopicId (from the start if null). A reply holds at most
+    // MAX_TOPICS_PER_OPERATION topics, so it always fits in one operation; a full page means there may be more.
+    public String[] handleTopicList(String afterTopicId) {
+        TreeMap<String, String[]> page = new TreeMap<>();  // topicId -> {topicName, owner}
+        for (Map.Entry<String, String> topic : topicNames.entrySet()) {
+            String topicId = topic.getKey();
+            if (afterTopicId != null && topicId.compareTo(afterTopicId) <= 0) {
+                continue;
+            }
+            String owner = topicPublishers.get(topicId);
+            if (owner != null && topicHomes(topicId).contains(ownBrokerAddress)) {
+                page.put(topicId, new String[] { topic.getValue(), owner });
+                if (page.size() > MAX_TOPICS_PER_OPERATION) {
+                    page.pollLastEntry();
+                }
+            }
+        }
+        List<String> fields = new ArrayList<>(page.size() * 3);
+        for (Map.Entry<String, String[]> topic : page.entrySet()) {
+            fields.add(topic.getKey());
+            fields.add(topic.getValue()[0]);
+            fields.add(topic.getValue()[1]);
+        }
+        return fields.toArray(new String[0]);
+    }
+
+    // Record a topic unless one with the same ID is already known; the owner is in place before the topic is visible
+    private boolean storeTopic(String username, String topicId, String topicName) {
+        synchronized (topicNames) {
+            if (topicNames.containsKey(topicId)) {
+                return false;
+            }
             topicSubscribers.putIfAbsent(topicId, new ConcurrentHashMap<>());
-            topicNames.put(topicId, topicName);
+            clusterCounters.restore(ClusterCounters.topicCounter(topicId));
             topicPublishers.put(topicId, username);
-    
+            topicNames.put(topicId, topicName);
+            return true;
+        }
+    }
+
+    // Give the topic's other homes their copy
+    private void replicateTopic(String topicId, List<String> homes) {
+        for (String home : homes) {
+            BrokerHandler homeLink = home.equals(ownBrokerAddress) ? null : linkTo(home);
+            if (homeLink != null) {
+                handOffTopic(homeLink, topicId);
+            }  // Otherwise it is handed off once the link is up
+        }
+    }
+
+    // Rebuild the ring from the membership and hand the topics we know to the brokers that became their homes
+    private void rebuildRing() {
+        Set<String> members = new HashSet<>(clusterMap.getBrokers());
+        members.add(ownBrokerAddress);
+        HashRing previous = ring;
+        HashRing next = new HashRing(members, RING_POINTS_PER_BROKER);
+        ring = next;
+
+        int moved = 0;
+        for (String topicId : topicNames.keySet()) {
+            List<String> previousHomes = previous.homesOf(topicId, TOPIC_COPIES);
+            List<String> homes = next.homesOf(topicId, TOPIC_COPIES);
+            if (!homes.equals(previousHomes)) {
+                moved++;
+                List<String> newHomes = new ArrayList<>(homes);
+                newHomes.removeAll(previousHomes);
+                replicateTopic(topicId, newHomes);
+            }
+        }
+        if (moved > 0) {
+            System.out.println(moved + " known topics changed home brokers.");
+        }
+    }
+
+    // Send a peer what we know of the topics it is a home for; after a broker leaves, the copies held elsewhere
+    // are how its topics reach their new homes
+    private void handOffTopics(BrokerHandler brokerHandler) {
+        for (String topicId : topicNames.keySet()) {
+            if (topicHomes(topicId).contains(brokerHandler.getBrokerAddress())) {
+                handOffTopic(brokerHandler, topicId);
+            }
+        }
+    }
+
+    private void handOffTopic(BrokerHandler brokerHandler, String topicId) {
+        String topicName = topicNames.get(topicId);
+        String owner = topicPublishers.get(topicId);
+        if (topicName != null && owner != null) {
+            brokerHandler.send("synchronize_topic", topicId, topicName, owner);
+        }
+    }
+
+    // Only add topic topicid topicname, no further function call; used for cached topics and topics handed off
+    // by other brokers
+    public void createSimpleTopic(String username, String topicId, String topicName) {
+        // Ensure the topicId does not already exist, then store the topicId, topicName, and associated publisher username
+        if (storeTopic(username, topicId, topicName)) {
             System.out.println("Topic created by " + username + ": " + topicName + " (ID: " + topicId + ")");
         } else {
             System.out.println("Topic already exists: " + topicName + " (ID: " + topicId + ")");
@@ -215,128 +835,381 @@ public class Broker {
     
     
     public void publishMessage(String topicId, String message, boolean synchronizedRequired) {
-        // Check if the topic exists and has subscribers
-        if (topicSubscribers.containsKey(topicId)) {
-            // Retrieve the topic name
-            String topicName = topicNames.get(topicId);
-            
-            // Check each subscriber in subClientHandlers
-            for (ClientHandler clientHandler : subClientHandlers) {
-                String subscriberUsername = clientHandler.getUserName();
-                ConcurrentHashMap<String, Subscriber> subscribers = topicSubscribers.get(topicId);
-                
-                // Check if the subscriber is subscribed to the topic
-                if (subscribers != null && subscribers.containsKey(subscriberUsername)) {
-                    try {
-                        // Send the message to the subscriber
-                        PrintWriter out = new PrintWriter(clientHandler.getClientSocket().getOutputStream(), true);
-                        String timestamp = new java.text.SimpleDateFormat("dd/MM HH:mm:ss").format(new java.util.Date());
-                        out.println(timestamp + " " + topicId + ":" + this.topicNames.get(topicId) + ": " + "Message Received: "  + message);
-                        out.flush();
-                        System.out.println("Message sent to subscriber: " + subscriberUsername + " on topic: " + topicId);
-                    } catch (IOException e) {
-                        System.err.println("Error sending message to subscriber: " + subscriberUsername);
-                        e.printStackTrace();
+        publishMessages(topicId, Collections.singletonList(message), synchronizedRequired);
+    }
+
+    // Publish a group of messages in order, e.g. from publish_batch: the topic's lock is taken once for the
+    // whole group, and each interested broker is sent the group as a single operation
+    public void publishMessages(String topicId, List<String> messages, boolean synchronizedRequired) {
+        publishMessages(topicId, null, 0, messages, synchronizedRequired);
+    }
+
+    // As above, for messages a producer tagged with its ID and sequence number (producerId may be null for
+    // untagged ones). Returns false, publishing nothing, if this broker has already seen that sequence number;
+    // the tag travels with the messages so other brokers drop the duplicate too.
+    public boolean publishMessages(String topicId, String producerId, long sequence, List<String> messages, boolean synchronizedRequired) {
+        return publishMessages(topicId, producerId, sequence, -1, messages, synchronizedRequired);
+    }
+
+    // As above; firstSeq is the sequence number the publishing broker gave the first message, or -1 to number the
+    // messages here. A forwarded number ahead of ours is adopted, so every broker numbers a message the same way.
+    public boolean publishMessages(String topicId, String producerId, long sequence, long firstSeq, List<String> messages, boolean synchronizedRequired) {
+        if (producerId != null && !producerDedup.accept(producerId, sequence)) {
+            System.out.println("Dropped duplicate publish " + producerId + ":" + sequence + " to topic " + topicId);
+            return false;
+        }
+
+        // A local publish waits for its subscribers to make room first, under the BLOCK policy, so the lock below
+        // is never held while waiting; messages forwarded by other brokers never wait
+        if (synchronizedRequired) {
+            awaitSubscriberRoom(topicId, messages.size());
+        }
+
+        // Numbering and fan-out happen under the topic's lock, so a resuming subscriber cannot miss or repeat a message
+        TopicHistory history = topicHistory(topicId);
+        synchronized (history) {
+            // Check if the topic exists; a delete that got the lock first has already removed it
+            if (!isCurrentTopic(topicId, history)) {
+                System.out.println("Topic not found: " + topicId);
+                return true;
+            }
+            publishedMessages.add(messages.size());
+            if (firstSeq >= 0) {
+                history.advanceTo(firstSeq);
+            }
+            long numberedFrom = history.getNextSeq();
+
+            // Encode each delivery line once, with its sequence number; every recipient, the history and the log share the same bytes
+            byte[][] lines = new byte[messages.size()][];
+            for (int i = 0; i < lines.length; i++) {
+                lines[i] = encodeDeliveryLine(topicId, history.getNextSeq(), messages.get(i));
+                history.append(lines[i]);
+                appendToTopicLog(topicId, lines[i]);
+            }
+
+            // Only the local connections subscribed to this topic are visited
+            Set<ClientHandler> handlers = localTopicHandlers.get(topicId);
+            if (handlers != null) {
+                for (ClientHandler clientHandler : handlers) {
+                    // Queue the messages on the subscriber's own writer so a slow socket never stalls this thread; the
+                    // writer counts and logs what it has to drop, so nothing is logged per message here
+                    for (byte[] line : lines) {
+                        clientHandler.deliver(topicId, line);
                     }
                 }
             }
-    
-            // If synchronization is required, inform other brokers
+
+            // If synchronization is required, forward to the brokers with subscribers of their own; this only
+            // queues the operation, and doing it under the lock keeps the numbers in order on every link
             if (synchronizedRequired) {
-                synchronizeMessage(topicId, message);
+                synchronizeMessages(topicId, producerId, sequence, numberedFrom, messages);
             }
-    
-        } else {
-            System.out.println("Topic not found: " + topicId);
         }
+        return true;
     }
     
 
-    public void addSubscriberId(String topicId, String subscriberId, boolean synchronizedRequired) {
-        // Check if the topic already has a subscriber list; if not, create one
-        ConcurrentHashMap<String, Subscriber> subscribers = topicSubscribers.computeIfAbsent(topicId, k -> new ConcurrentHashMap<>());
-        
-        // Create a new Subscriber object if it does not already exist
-        if (!subscribers.containsKey(subscriberId)) {
-            // Create the Subscriber object (you can modify it to store more meaningful data)
-            Subscriber subscriber = new Subscriber(subscriberId, new PrintWriter(System.out, true), null); // Placeholder for the real writer/reader
-            subscribers.put(subscriberId, subscriber);
+    private void awaitSubscriberRoom(String topicId, int count) {
+        Set<ClientHandler> handlers = localTopicHandlers.get(topicId);
+        if (handlers != null) {
+            long deadline = OutboundWriter.roomDeadline();
+            for (ClientHandler clientHandler : handlers) {
+                clientHandler.awaitRoom(topicId, count, deadline);
+            }
+        }
+    }
+
+    // Subscriptions stay on the subscriber's broker; peers only learn that this broker is interested in the topic.
+    // Returns the sequence number of the first message the subscriber will receive live, or -1 if the topic has
+    // been deleted meanwhile.
+    public long addSubscriberId(String topicId, String subscriberId) {
+        TopicHistory history = topicHistory(topicId);
+        synchronized (history) {
+            if (!isCurrentTopic(topicId, history)) {
+                return -1;
+            }
+            ConcurrentHashMap<String, Subscriber> subscribers = topicSubscribers.get(topicId);
             
-            if (synchronizedRequired) {
-                // Synchronize the subscription across all brokers immediately
-                synchronizeSubscription(topicId, subscriberId);
+            // Create a new Subscriber object if it does not already exist
+            if (!subscribers.containsKey(subscriberId)) {
+                // Create the Subscriber object (you can modify it to store more meaningful data)
+                Subscriber subscriber = new Subscriber(subscriberId, new PrintWriter(System.out, true), null); // Placeholder for the real writer/reader
+                subscribers.put(subscriberId, subscriber);
+
+                // Index the subscription against the local connection
+                ClientHandler clientHandler = subClientHandlers.get(subscriberId);
+                if (clientHandler != null) {
+                    addLocalTopicHandler(topicId, history, clientHandler);
+                }
             }
+            return history.getNextSeq();
         }
     }
-    
 
+    // sub {topic_id} from {seq}: send the reply and the messages missed since fromSeq, then switch to live delivery.
+    // The missed messages are copied under the topic's lock but queued after releasing it, so a client that is
+    // not reading holds up only itself. Each round sends what was published meanwhile; the last few messages are
+    // queued and the subscription made under the lock, so the catch-up and the live stream meet with nothing
+    // missed or repeated.
+    public void resumeSubscription(String topicId, ClientHandler clientHandler, long fromSeq) {
+        TopicHistory history = topicHistory(topicId);
+        OutboundWriter outbound = clientHandler.getOutbound();
+        List<byte[]> missed;
+        long nextSeq;
+        String reply;
+        synchronized (history) {
+            if (!isCurrentTopic(topicId, history)) {
+                clientHandler.sendReply("error: Topic " + topicId + " does not exist.");
+                return;
+            }
+            long firstSeq = history.firstAvailable(fromSeq);
+            missed = history.since(fromSeq);
+            nextSeq = history.getNextSeq();
+            reply = "success: " + clientHandler.getUserName() + " resumed topic: " + topicId + " from sequence " + firstSeq;
+            if (!history.covers(fromSeq)) {
+                reply += " (messages before it are no longer available)";
+            }
+        }
+        clientHandler.sendReply(reply);
 
-    public void synchronizeSubscription(String topicId, String subscriberId) {
-        // Update the list of connected brokers before synchronization
-        this.updateConnectedBrokers();
-        
-        // Synchronize subscription with all connected brokers
-        for (Socket brokerSocket : connectedBrokers) {
+        for (int round = 0; ; round++) {
+            for (byte[] line : missed) {
+                if (!outbound.sendReply(line)) {
+                    return;  // The client stopped reading and has been disconnected
+                }
+            }
+            synchronized (history) {
+                if (topicHistories.get(topicId) != history) {
+                    return;  // The topic was deleted in the meantime
+                }
+                missed = history.since(nextSeq);
+                nextSeq = history.getNextSeq();
+                if (missed.isEmpty() || round + 1 >= MAX_RESUME_ROUNDS) {
+                    // Whatever is still missing is queued like live messages, without waiting for space
+                    for (byte[] line : missed) {
+                        clientHandler.deliver(topicId, line);
+                    }
+                    addSubscriberId(topicId, clientHandler.getUserName());
+                    return;
+                }
+            }
+        }
+    }
+
+    // "<timestamp> <topicId>:<topicName>: Message Received (seq <seq>): <message>\n" as UTF-8; the sequence number
+    // is what a subscriber passes to "sub {topic_id} from {seq}" to resume after it
+    private byte[] encodeDeliveryLine(String topicId, long seq, String message) {
+        byte[] timestamp = clock.timestamp();
+        byte[] header = topicHeaders.computeIfAbsent(topicId,
+                id -> (" " + id + ":" + topicNames.get(id) + ": Message Received (seq ").getBytes(StandardCharsets.UTF_8));
+        byte[] sequence = (seq + "): ").getBytes(StandardCharsets.US_ASCII);
+        byte[] payload = message.getBytes(StandardCharsets.UTF_8);
+
+        byte[] line = new byte[timestamp.length + header.length + sequence.length + payload.length + 1];
+        int position = 0;
+        System.arraycopy(timestamp, 0, line, position, timestamp.length);
+        position += timestamp.length;
+        System.arraycopy(header, 0, line, position, header.length);
+        position += header.length;
+        System.arraycopy(sequence, 0, line, position, sequence.length);
+        position += sequence.length;
+        System.arraycopy(payload, 0, line, position, payload.length);
+        line[line.length - 1] = '\n';
+        return line;
+    }
+
+    // A publisher is about to publish to the topic here for the first time on its connection. Another broker may
+    // have numbered the topic's messages meanwhile, e.g. before the publisher failed over to us, so continue after
+    // the highest sequence number any peer has given out.
+    public void catchUpSequence(String topicId) {
+        List<CompletableFuture<String[]>> replies = new ArrayList<>();
+        for (BrokerHandler brokerHandler : brokerBrokerHandlers) {
+            replies.add(brokerHandler.request(RPC_TIMEOUT_MS, "topic_seq", topicId));
+        }
+        long nextSeq = 0;
+        for (CompletableFuture<String[]> reply : replies) {
             try {
-                PrintWriter out = new PrintWriter(brokerSocket.getOutputStream(), true);
-                // Send the synchronization message to the connected broker
-                out.println("synchronize_sub " + topicId + " " + subscriberId);
-                System.out.println("synchronize_sub " + topicId + " " + subscriberId);
-                System.out.println("dowqodnqwd");
-            } catch (IOException e) {
-                e.printStackTrace();
+                nextSeq = Math.max(nextSeq, Long.parseLong(reply.get()[0]));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            } catch (ExecutionException e) {
+                System.out.println("Sequence of topic " + topicId + " unknown at a peer: " + e.getCause().getMessage());
             }
         }
+        TopicHistory history = topicHistory(topicId);
+        synchronized (history) {
+            if (isCurrentTopic(topicId, history)) {
+                history.advanceTo(nextSeq);
+            }
+        }
+    }
+
+    // The sequence number this broker would give the topic's next message, 0 if it has not seen the topic
+    public long topicNextSeq(String topicId) {
+        TopicHistory history = topicHistories.get(topicId);
+        return history == null ? 0 : history.getNextSeq();
+    }
+
+    // The topic's history, which is also its lock; check isCurrentTopic once holding it
+    private TopicHistory topicHistory(String topicId) {
+        return topicHistories.computeIfAbsent(topicId, k -> new TopicHistory());
+    }
+
+    // Called with the history's lock held: true if the history still belongs to a known topic. One created for a
+    // topic that was deleted meanwhile is dropped again, so a late publish or subscribe recreates nothing.
+    private boolean isCurrentTopic(String topicId, TopicHistory history) {
+        if (topicHistories.get(topicId) != history) {
+            return false;
+        }
+        if (!topicNames.containsKey(topicId)) {
+            topicHistories.remove(topicId, history);
+            return false;
+        }
+        return true;
     }
     
     
-    public void unsubscribe(String topicId, String username, boolean synchronizedRequired) {
+    public void unsubscribe(String topicId, String username) {
         ConcurrentHashMap<String, Subscriber> subscribers = topicSubscribers.get(topicId);
         if (subscribers != null && subscribers.containsKey(username)) {
             subscribers.remove(username);
             subscriberUsernames.remove(username);
-            System.out.println(username + " unsubscribed from topic: " + topicId);
-    
-            // If synchronization is required, synchronize the unsubscription across brokers
-            if (synchronizedRequired) {
-                synchronizeUnsubscription(topicId, username);
+            ClientHandler clientHandler = subClientHandlers.get(username);
+            if (clientHandler != null) {
+                removeLocalTopicHandler(topicId, clientHandler);
             }
+            System.out.println(username + " unsubscribed from topic: " + topicId);
         } else {
             System.out.println("Unsubscription failed: No subscription found for " + username + " on topic " + topicId);
         }
     }
-    
 
-    public void synchronizeUnsubscription(String topicId, String subscriberId) {
-        // Update the list of connected brokers before synchronization
-        this.updateConnectedBrokers();
-    
-        // Synchronize unsubscription with all connected brokers
-        for (Socket brokerSocket : connectedBrokers) {
-            try {
-                PrintWriter out = new PrintWriter(brokerSocket.getOutputStream(), true);
-                // Send the synchronization message to the connected broker
-                out.println("synchronize_unsub " + topicId + " " + subscriberId);
-                out.flush();
-            } catch (IOException e) {
-                e.printStackTrace();
+    // Called with the topic's lock held
+    private void addLocalTopicHandler(String topicId, TopicHistory history, ClientHandler clientHandler) {
+        localTopicHandlers.compute(topicId, (id, handlers) -> {
+            if (handlers == null) {
+                handlers = ConcurrentHashMap.newKeySet();
             }
+            if (handlers.add(clientHandler)) {
+                clusterCounters.increment(ClusterCounters.topicCounter(id));
+                if (handlers.size() == 1) {
+                    history.setIdle(false);
+                    advertiseInterest("interest_add", id);  // First local subscriber of the topic
+                }
+            }
+            return handlers;
+        });
+    }
+
+    // Like every change to a topic's local subscribers, this runs under the topic's lock
+    private void removeLocalTopicHandler(String topicId, ClientHandler clientHandler) {
+        TopicHistory history = topicHistories.get(topicId);
+        if (history == null) {
+            return;  // The topic was deleted along with its subscriber index
+        }
+        synchronized (history) {
+            localTopicHandlers.computeIfPresent(topicId, (id, handlers) -> {
+                if (handlers.remove(clientHandler)) {
+                    clusterCounters.decrement(ClusterCounters.topicCounter(id));
+                }
+                if (handlers.isEmpty()) {
+                    // Last local subscriber has gone; keep receiving the topic for a while so a reconnecting subscriber can resume
+                    history.setIdle(true);
+                    if (!topicLogs.containsKey(id)) {
+                        maintenanceScheduler.schedule(() -> expireInterest(id), RESUME_WINDOW_MS, TimeUnit.MILLISECONDS);
+                    }
+                    return null;
+                }
+                return handlers;
+            });
         }
     }
+
+    // Give up a topic nobody has resubscribed to within the resume window
+    private void expireInterest(String topicId) {
+        TopicHistory history = topicHistories.get(topicId);
+        if (history == null) {
+            return;  // The topic was deleted
+        }
+        synchronized (history) {
+            if (!localTopicHandlers.containsKey(topicId) && !topicLogs.containsKey(topicId) && !history.isRetained(RESUME_WINDOW_MS)) {
+                history.lapse();
+                advertiseInterest("interest_remove", topicId);
+            }
+        }
+    }
+
+    private void advertiseInterest(String operation, String topicId) {
+        synchronized (interestLock) {
+            for (BrokerHandler brokerHandler : brokerBrokerHandlers) {
+                brokerHandler.send(operation, topicId);
+            }
+        }
+    }
+
+    // interest_sync replaces the peer's view of our topics; a long list continues in interest_add operations
+    private void sendTopics(BrokerHandler brokerHandler, String operation, List<String> topicIds) {
+        int start = 0;
+        do {
+            List<String> chunk = topicIds.subList(start, Math.min(topicIds.size(), start + MAX_TOPICS_PER_OPERATION));
+            String[] fields = new String[chunk.size() + 1];
+            fields[0] = start == 0 ? operation : "interest_add";
+            for (int i = 0; i < chunk.size(); i++) {
+                fields[i + 1] = chunk.get(i);
+            }
+            brokerHandler.send(fields);
+            start += MAX_TOPICS_PER_OPERATION;
+        } while (start < topicIds.size());
+    }
       
     
 
-    // Method to list all topics to a subscriber
+    // Method to list all topics to a subscriber: those known here, completed with the topics each reachable
+    // broker is home to
     public void listAllTopics(PrintWriter out) {
         updateConnectedBrokers();
-        if (topicNames.isEmpty()) {
+        Map<String, String[]> topics = new TreeMap<>();  // topicId -> {topicName, publisherName}
+        for (Map.Entry<String, String> topic : topicNames.entrySet()) {
+            String publisherName = topicPublishers.get(topic.getKey());
+            if (publisherName != null) {
+                topics.put(topic.getKey(), new String[] { topic.getValue(), publisherName });
+            }
+        }
+
+        // Ask every peer at once for its first page, then wait for the replies together; a peer with more topics
+        // is asked for the rest page by page
+        List<BrokerHandler> peers = new ArrayList<>(brokerBrokerHandlers);
+        List<CompletableFuture<String[]>> replies = new ArrayList<>();
+        for (BrokerHandler brokerHandler : peers) {
+            replies.add(brokerHandler.request(RPC_TIMEOUT_MS, "topic_list"));
+        }
+        for (int peer = 0; peer < peers.size(); peer++) {
+            try {
+                String[] fields = replies.get(peer).get();
+                while (true) {
+                    for (int i = 0; i + 2 < fields.length; i += 3) {
+                        topics.put(fields[i], new String[] { fields[i + 1], fields[i + 2] });
+                    }
+                    if (fields.length < MAX_TOPICS_PER_OPERATION * 3) {
+                        break;
+                    }
+                    fields = peers.get(peer).request(RPC_TIMEOUT_MS, "topic_list", fields[fields.length - 3]).get();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            } catch (ExecutionException e) {
+                System.out.println("Topic list incomplete: " + e.getCause().getMessage());
+            }
+        }
+
+        if (topics.isEmpty()) {
             out.println("No topics available.");
         } else {
-            for (String topicId : topicNames.keySet()) {
-                String topicName = topicNames.get(topicId);
-                String publisherName = topicPublishers.get(topicId);  // Get the publisher name
+            for (Map.Entry<String, String[]> topic : topics.entrySet()) {
                 //String timestamp = new java.text.SimpleDateFormat("dd/MM HH:mm:ss").format(new java.util.Date());
-                out.println("Topic ID: " + topicId + ", Name: " + topicName + ", Publisher: " + publisherName);
+                out.println("Topic ID: " + topic.getKey() + ", Name: " + topic.getValue()[0] + ", Publisher: " + topic.getValue()[1]);
             }
         }
         out.println("END");  // Indicate the end of the topic list
@@ -362,60 +1235,12 @@ public class Broker {
         out.println("END");
     }
 
-    public void synchronizeTopic(String username, String topicId, String topicName) {
+    public void synchronizeMessages(String topicId, String producerId, long sequence, long firstSeq, List<String> messages) {
         updateConnectedBrokers();
-        Set<String> activeBrokers = directoryServiceClient.getActiveBrokers();
-    
-        for (String brokerAddress : activeBrokers) {
-            if (!connectedBrokerAddresses.contains(brokerAddress)) {
-                connectToBroker(brokerAddress);
-            }
-        }
-    
-        // Print debug info and send synchronization message to all connected brokers
-        for (Socket brokerSocket : connectedBrokers) {
-            try {
-                PrintWriter out = new PrintWriter(brokerSocket.getOutputStream(), true);
-    
-                // Print full socket information: Local and Remote addresses and ports
-                String socketIP = brokerSocket.getInetAddress().getHostAddress();
-                int socketPort = brokerSocket.getPort();
-                String localAddress = brokerSocket.getLocalAddress().toString();
-                int localPort = brokerSocket.getLocalPort();
-                String remoteAddress = brokerSocket.getRemoteSocketAddress().toString();
-    
-                System.out.println("Sending to broker at IP: " + socketIP + " Port: " + socketPort +
-                                   ". Full socket info: Local Address: " + localAddress + 
-                                   " Local Port: " + localPort + 
-                                   " Remote Address: " + remoteAddress);
-    
-                // Send the synchronization message with the username
-                out.println("synchronize_topic " + topicId + " " + topicName + " " + username);
-                out.flush();
-                System.out.println("Sent 'synchronize_topic' for topic ID: " + topicId + " with username: " + username + " to broker at IP: " + socketIP + " Port: " + socketPort);
-    
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
-        }
-    }
-    
-
-    public void synchronizeMessage(String topicId, String message) {
-        updateConnectedBrokers();
-        Set<String> activeBrokers = directoryServiceClient.getActiveBrokers();
-        for (String brokerAddress : activeBrokers) {
-            if (!connectedBrokerAddresses.contains(brokerAddress)) {
-                connectToBroker(brokerAddress);
-            }
-        }
 
-        for (Socket brokerSocket : connectedBrokers) {
-            try {
-                PrintWriter out = new PrintWriter(brokerSocket.getOutputStream(), true);
-                out.println("synchronize_message " + topicId + " " + message);
-            } catch (IOException e) {
-                e.printStackTrace();
+        for (BrokerHandler brokerHandler : brokerBrokerHandlers) {
+            if (brokerHandler.hasInterest(topicId)) {
+                brokerHandler.sendMessages(topicId, producerId, sequence, firstSeq, messages);
             }
         }
     }
@@ -431,82 +1256,155 @@ public class Broker {
             return;  // Skip connecting to itself
         }
     
-        if (connectedBrokerAddresses.contains(brokerAddress)) {
+        // Claim the address first so concurrent callers do not open a second link to the same broker
+        if (!connectedBrokerAddresses.add(brokerAddress)) {
             System.out.println("Already connected to broker at: " + brokerAddress);
             return;
         }
     
+        Socket brokerSocket = new Socket();
         try {
-            // Establish the connection synchronously
-            Socket brokerSocket = new Socket(brokerIP, brokerPort);
-            connectedBrokers.add(brokerSocket);
-            connectedBrokerAddresses.add(brokerAddress);
-            PrintWriter out = new PrintWriter(brokerSocket.getOutputStream(), true);
-            BufferedReader in = new BufferedReader(new InputStreamReader(brokerSocket.getInputStream()));
+            // Establish the connection synchronously, but never wait long on a broker that died without deregistering
+            brokerSocket.connect(new InetSocketAddress(brokerIP, brokerPort), PEER_CONNECT_TIMEOUT_MS);
+            brokerSocket.setSoTimeout(PEER_CONNECT_TIMEOUT_MS * 2);  // Only while waiting for the handshake reply
     
-            // Perform the handshake with the broker
-            if (!performBrokerHandshake(out, in, brokerSocket)) {
+            // Perform the handshake with the broker, which also agrees the link version
+            int linkVersion = performBrokerHandshake(brokerSocket);
+            if (linkVersion < 0) {
                 System.err.println("Handshake with broker failed: " + brokerAddress + ". Closing connection.");
+                connectedBrokerAddresses.remove(brokerAddress);
+                redialNotBefore.put(brokerAddress, System.currentTimeMillis() + REDIAL_BACKOFF_MS);
                 brokerSocket.close();
                 return;
             }
+            brokerSocket.setSoTimeout(0);
+            redialNotBefore.remove(brokerAddress);
     
-            System.out.println("Broker handshake successful with " + brokerAddress);
+            System.out.println("Broker handshake successful with " + brokerAddress + " (link version " + linkVersion + ")");
     
             // Now submit the BrokerHandler task to handle the broker communication asynchronously
-            BrokerHandler brokerHandler = new BrokerHandler(brokerSocket, this, brokerIP + ":" + brokerPort);
-            connectionPool.submit(brokerHandler);
-            brokerBrokerHandlers.add(brokerHandler);
+            BrokerHandler brokerHandler = new BrokerHandler(brokerSocket, this, brokerIP + ":" + brokerPort, linkVersion);
+            addBrokerHandler(brokerHandler);
         } catch (IOException e) {
+            connectedBrokerAddresses.remove(brokerAddress);
+            redialNotBefore.put(brokerAddress, System.currentTimeMillis() + REDIAL_BACKOFF_MS);
             System.out.println("Error connecting to broker at " + brokerAddress + ": " + e.getMessage());
+            try {
+                brokerSocket.close();
+            } catch (IOException closeError) {
+                // Never connected
+            }
         }
     }
     
-    private boolean performBrokerHandshake(PrintWriter out, BufferedReader in, Socket brokerSocket) throws IOException {
-        // Retrieve and print socket information
-        String localAddress = brokerSocket.getLocalAddress().toString();
-        int localPort = brokerSocket.getLocalPort();
+    // Returns the agreed link version, or -1 if the handshake failed
+    private int performBrokerHandshake(Socket brokerSocket) throws IOException {
         String remoteAddress = brokerSocket.getRemoteSocketAddress().toString();
-        System.out.println("Local Address: " + localAddress + ", Local Port: " + localPort);
-        System.out.println("Remote Address: " + remoteAddress);
     
-        // Send handshake initiation message to the broker
-        out.println("HANDSHAKE_INIT " + ownBrokerAddress + " broker");
+        // Send handshake initiation message to the broker, offering the newest link version we speak
+        OutputStream out = brokerSocket.getOutputStream();
+        out.write(("HANDSHAKE_INIT " + ownBrokerAddress + " broker " + BrokerLink.LATEST_VERSION + "\n").getBytes(StandardCharsets.UTF_8));
         out.flush();  // Ensure the message is sent
-        System.out.println("Sent HANDSHAKE_INIT to broker at IP: " + remoteAddress);
     
-        // Wait for the broker to respond with a handshake acknowledgment
-        String ack = in.readLine();
-        System.out.println("Received from broker: " + ack);
+        // Wait for the acknowledgment; read it unbuffered so nothing the peer sends after it is lost
+        String ack = BrokerLink.readHandshakeLine(brokerSocket.getInputStream());
     
-        // Check if the handshake was successful
+        // Check if the handshake was successful; a bare ACK comes from a broker that only speaks text
         if ("HANDSHAKE_ACK".equals(ack)) {
-            System.out.println("Broker handshake successful with broker at IP: " + remoteAddress);
-            return true;
+            return BrokerLink.TEXT_VERSION;
+        } else if (ack != null && ack.startsWith("HANDSHAKE_ACK ")) {
+            return Math.min(parseLinkVersion(ack.substring("HANDSHAKE_ACK ".length())), BrokerLink.LATEST_VERSION);
         } else {
             System.err.println("Broker handshake failed with broker at IP: " + remoteAddress + ". Received: " + ack);
-            return false;
+            return -1;
+        }
+    }
+
+    private static int parseLinkVersion(String version) {
+        try {
+            return Math.max(Integer.parseInt(version), BrokerLink.TEXT_VERSION);
+        } catch (NumberFormatException e) {
+            return BrokerLink.TEXT_VERSION;
         }
     }
      
 
+    // Of each pair of brokers the one with the lexicographically lower address dials and the other accepts, so both
+    // directions share a single link; false for our own address
+    private boolean dialsTo(String brokerAddress) {
+        return ownBrokerAddress.compareTo(brokerAddress) < 0;
+    }
+
+    // Called on the publish and subscribe paths, so missing links are dialled in the background and a peer that
+    // just failed is left alone until its backoff has passed
     public void updateConnectedBrokers() {
-        // Retrieve active brokers from the Directory Service
-        Set<String> activeBrokers = directoryServiceClient.getActiveBrokers();
+        // Read the active brokers from the locally cached cluster map, never from the Directory Service
+        Set<String> activeBrokers = clusterMap.getBrokers();
+        long now = System.currentTimeMillis();
     
         // For each broker in the active broker list
         for (String brokerAddress : activeBrokers) {
             // If we are not already connected to this broker, establish a connection
-            if (!connectedBrokerAddresses.contains(brokerAddress)) {
-                connectToBroker(brokerAddress); // This method will handle the connection
+            if (dialsTo(brokerAddress) && !connectedBrokerAddresses.contains(brokerAddress)
+                    && redialNotBefore.getOrDefault(brokerAddress, 0L) <= now) {
+                redialNotBefore.put(brokerAddress, now + REDIAL_BACKOFF_MS);  // One dial at a time per peer
+                connectionPool.submit(() -> connectToBroker(brokerAddress)); // This method will handle the connection
+            }
+        }
+    }
+
+    // Start exchanging operations with a peer; it first learns our counters and which topics we have subscribers for
+    private void addBrokerHandler(BrokerHandler brokerHandler) {
+        sendCounters(brokerHandler, clusterCounters.encodeAll());
+        synchronized (interestLock) {
+            brokerBrokerHandlers.add(brokerHandler);
+            Set<String> interest = new HashSet<>(localTopicHandlers.keySet());
+            interest.addAll(topicLogs.keySet());
+            for (Map.Entry<String, TopicHistory> entry : topicHistories.entrySet()) {
+                if (entry.getValue().isRetained(RESUME_WINDOW_MS)) {
+                    interest.add(entry.getKey());
+                }
             }
+            sendTopics(brokerHandler, "interest_sync", new ArrayList<>(interest));
         }
+        handOffTopics(brokerHandler);
+        connectionPool.submit(brokerHandler);
     }
+
+    // Close the link to a broker that has left the cluster
+    public void disconnectBroker(String brokerAddress) {
+        closeBrokerLinks(brokerAddress);
+        connectedBrokerAddresses.remove(brokerAddress);
+    }
+
+    private void closeBrokerLinks(String brokerAddress) {
+        for (BrokerHandler brokerHandler : brokerBrokerHandlers) {
+            if (brokerHandler.getBrokerAddress().equals(brokerAddress)) {
+                brokerHandler.close();
+            }
+        }
+    }
+
+    // Called by a BrokerHandler once its connection has ended
+    public void removeBrokerHandler(BrokerHandler brokerHandler) {
+        brokerBrokerHandlers.remove(brokerHandler);
+        String brokerAddress = brokerHandler.getBrokerAddress();
+        // A replaced link closes after its successor was set up, and must not clear the successor's claim
+        boolean replaced = false;
+        for (BrokerHandler other : brokerBrokerHandlers) {
+            replaced |= other.getBrokerAddress().equals(brokerAddress);
+        }
+        if (!replaced) {
+            connectedBrokerAddresses.remove(brokerAddress);
+        }
+        System.out.println("Broker connection closed: " + brokerAddress);
+    }
+
     public void showSubscriberCount(String topicId, PrintWriter out) {
-        ConcurrentHashMap<String, Subscriber> subscribers = topicSubscribers.get(topicId);
         String timestamp = new java.text.SimpleDateFormat("dd/MM HH:mm:ss").format(new java.util.Date());
-        if (subscribers != null) {
-            out.println("Subscriber count for topic " + topicId + ": " + subscribers.size());
+        if (topicExists(topicId)) {
+            // Served from the gossiped counter, so no other broker is asked
+            out.println("Subscriber count for topic " + topicId + ": " + clusterCounters.get(ClusterCounters.topicCounter(topicId)));
         } else {
             
             out.println(timestamp + " Topic not found: " + topicId);
@@ -514,263 +1412,147 @@ public class Broker {
     }
 
     public void deleteTopic(String topicId, boolean synchronizedRequired) {
-        // Check if the topic exists
-        if (topicNames.containsKey(topicId)) {
+        // The topic is torn down under its lock, so a publish or subscribe racing with the delete either finishes
+        // first or finds the topic gone
+        String topicName;
+        TopicLog topicLog;
+        Set<ClientHandler> handlers;
+        TopicHistory history = topicHistory(topicId);
+        synchronized (history) {
+            // Check if the topic exists
+            if (!isCurrentTopic(topicId, history)) {
+                System.out.println("Delete failed: Topic not found.");
+                return;
+            }
             // Remove the topic from the system
-            String topicName = topicNames.remove(topicId);
+            topicName = topicNames.remove(topicId);
             topicPublishers.remove(topicId);
-            
-            // Find all subscribers subscribed to the topic
-            ConcurrentHashMap<String, Subscriber> subscribers = topicSubscribers.remove(topicId);
-    
-            // Notify and unsubscribe all subscribers
-            if (subscribers != null && !subscribers.isEmpty()) {
-                for (ClientHandler clientHandler : subClientHandlers) {
-                    String subscriberUsername = clientHandler.getUserName();
-    
-                    // Check if the client handler is subscribed to the topic
-                    if (subscribers.containsKey(subscriberUsername)) {
-                        try {
-                            // Send the topic deletion message to the subscriber with the formatted timestamp and topic details
-                            PrintWriter out = new PrintWriter(clientHandler.getClientSocket().getOutputStream(), true);
-                            // Get the current date and time in the desired format: dd/MM hh:mm:ss
-                            //String timestamp = new java.text.SimpleDateFormat("dd/MM HH:mm:ss").format(new java.util.Date());
-                            out.println( "Topic " + topicId + " (" + topicName + ") has been deleted.");
-                            out.flush();
-                            System.out.println("Notified subscriber " + subscriberUsername + " about the deletion of topic: " + topicId);
-                        } catch (IOException e) {
-                            System.err.println("Error notifying subscriber: " + subscriberUsername);
-                            e.printStackTrace();
-                        }
-                        
-                        // Remove the subscription
-                        subscriberUsernames.remove(subscriberUsername);
-                    }
-                }
-            }
-    
-            System.out.println("Topic " + topicId + " deleted.");
-    
-            // If synchronization is required, notify other brokers
-            if (synchronizedRequired) {
-                synchronizeDelete(topicId);
+
+            // Drop the local subscriber list of the topic, its history and any peer's interest in it
+            topicSubscribers.remove(topicId);
+            topicHistories.remove(topicId);
+            topicHeaders.remove(topicId);
+            topicLog = topicLogs.remove(topicId);
+            for (BrokerHandler brokerHandler : brokerBrokerHandlers) {
+                brokerHandler.removeInterest(topicId);
             }
-        } else {
-            System.out.println("Delete failed: Topic not found.");
+            handlers = localTopicHandlers.remove(topicId);
         }
-    }
-    
-    
-    public void synchronizeDelete(String topicId) {
-        updateConnectedBrokers();
-    
-        // Synchronize topic deletion with all connected brokers
-        for (Socket brokerSocket : connectedBrokers) {
+        if (topicLog != null) {
             try {
-                PrintWriter out = new PrintWriter(brokerSocket.getOutputStream(), true);
-                out.println("synchronize_delete " + topicId);
-                out.flush();
+                topicLog.delete();
             } catch (IOException e) {
-                e.printStackTrace();
+                System.err.println("Error deleting history of topic " + topicId + ": " + e.getMessage());
             }
         }
-    }
-    
-    //If broker want to connect to publisher/subscriber, it need to obtain the lock and check current connected publisher/subscriber across broker network
-    // Method to lock the broker
-    public synchronized void lock() {
-        isLocked = true;
-        System.out.println("Broker locked. No new connections can be accepted.");
-    }
-
-    // Method to unlock the broker
-    public synchronized void unlock() {
-        isLocked = false;
-        System.out.println("Broker unlocked. New connections can now be accepted.");
-    }
 
-    // Method to check if the broker is locked
-    public synchronized boolean isLocked() {
-        return isLocked;
-    }
+        // The topic's subscriber count goes with it; every broker drops its own copy as it deletes the topic
+        clusterCounters.remove(ClusterCounters.topicCounter(topicId));
 
-    private boolean requestLockFromAllBrokers() {
-        updateConnectedBrokers();
-        boolean lockAcquired = true;
-        List<Socket> successfullyLockedBrokers = new ArrayList<>();
-    
-        for (BrokerHandler brokerHandler : brokerBrokerHandlers) {
-            Socket brokerSocket = brokerHandler.getSocket();  // Get the broker's socket
-    
-            try {
-                PrintWriter out = new PrintWriter(brokerSocket.getOutputStream(), true);
-                out.println("request_lock");  // Send lock request
-                out.flush();
-    
-                // Poll the response map in BrokerHandler to get the lock acknowledgment
-                String response;
-                while ((response = brokerHandler.getResponse("request_lock")) == null) {
-                    Thread.sleep(50);  // Short delay before re-checking
-                }
-    
-                // Check if the response is "lock_ack"
-                if (!"lock_ack".equals(response)) {
-                    lockAcquired = false;
-                    break;
+        // Notify and unsubscribe the local subscribers of the topic
+        if (handlers != null) {
+            for (ClientHandler clientHandler : handlers) {
+                String subscriberUsername = clientHandler.getUserName();
+                // Send the topic deletion message to the subscriber with the topic details
+                if (clientHandler.deliver("Topic " + topicId + " (" + topicName + ") has been deleted.")) {
+                    System.out.println("Notified subscriber " + subscriberUsername + " about the deletion of topic: " + topicId);
+                } else {
+                    System.err.println("Error notifying subscriber: " + subscriberUsername);
                 }
-    
-                // If lock was acquired, add the broker to the list of locked brokers
-                successfullyLockedBrokers.add(brokerSocket);
-    
-            } catch (IOException | InterruptedException e) {
-                System.err.println("Error requesting lock from broker: " + e.getMessage());
-                lockAcquired = false;
-                break;
+
+                // Remove the subscription
+                subscriberUsernames.remove(subscriberUsername);
             }
         }
-    
-        // If failed to acquire the lock, release all locks acquired so far
-        if (!lockAcquired) {
-            releaseLocksFromBrokers(successfullyLockedBrokers);
+
+        System.out.println("Topic " + topicId + " deleted.");
+
+        // If synchronization is required, notify other brokers
+        if (synchronizedRequired) {
+            synchronizeDelete(topicId);
         }
+    }
+    
+    
+    public void synchronizeDelete(String topicId) {
+        updateConnectedBrokers();
     
-        return lockAcquired;
+        // Synchronize topic deletion with all connected brokers
+        for (BrokerHandler brokerHandler : brokerBrokerHandlers) {
+            brokerHandler.send("synchronize_delete", topicId);
+        }
     }
     
-
-    private void releaseLocksFromBrokers(List<Socket> lockedBrokers) {
-        for (Socket brokerSocket : lockedBrokers) {
-            try {
-                PrintWriter out = new PrintWriter(brokerSocket.getOutputStream(), true);
-                // Send unlock command
-                out.println("release_lock");
-                out.flush();
-            } catch (IOException e) {
-                System.err.println("Error releasing lock from broker: " + e.getMessage());
-            }
+    public void removePublisherClientHandler(String username) {
+        if (pubClientHandlers.remove(username) != null) {
+            publisherQuota.release();
+            clusterCounters.decrement(ClusterCounters.PUBLISHERS);
+            System.out.println("Removed publisher ClientHandler for: " + username);
         }
     }
 
+    // A publisher's connection here has ended. Its topics are deleted once the grace period is over, unless by then
+    // it has reconnected, here or at another broker, and so taken its topics with it.
+    public void releasePublisherTopics(String username) {
+        maintenanceScheduler.schedule(() -> connectionPool.submit(() -> deleteAbandonedTopics(username)),
+                PUBLISHER_GRACE_MS, TimeUnit.MILLISECONDS);
+    }
 
-    private void releaseLockFromAllBrokers() {
-        for (Socket brokerSocket : connectedBrokers) {
-            try {
-                PrintWriter out = new PrintWriter(brokerSocket.getOutputStream(), true);
-                // Send lock release message
-                out.println("release_lock");
-                out.flush();
-            } catch (IOException e) {
-                System.err.println("Error releasing lock from broker: " + e.getMessage());
+    private void deleteAbandonedTopics(String username) {
+        if (isPublisherConnectedAnywhere(username)) {
+            System.out.println("Publisher " + username + " reconnected, keeping its topics.");
+            return;
+        }
+        for (Map.Entry<String, String> topic : topicPublishers.entrySet()) {
+            if (topic.getValue().equals(username)) {
+                // Delete the topic and notify all subscribers
+                deleteTopic(topic.getKey(), true);  // true indicates that synchronization is required
+                System.out.println("Deleted topic " + topic.getKey() + " due to publisher crash: " + username);
             }
         }
-    
-        // Also unlock the current broker
-        this.unlock();
-    }
-    
-    public int getLocalSubscriberCount() {
-        return this.subClientHandlers.size();
     }
 
-    public int getTotalSubscriberCount() {
-        int totalSubscriberCount = getLocalSubscriberCount();  // Start with the local subscriber count
-    
-        for (BrokerHandler brokerHandler : brokerBrokerHandlers) {
-            Socket brokerSocket = brokerHandler.getSocket();  // Get the broker's socket
-    
-            try {
-                PrintWriter out = new PrintWriter(brokerSocket.getOutputStream(), true);
-                
-                // Send a request to the broker to get its local subscriber count
-                out.println("get_local_subscriber_count");
-                out.flush();
-    
-                // Poll the response map in BrokerHandler to get the result
-                String response;
-                while ((response = brokerHandler.getResponse("get_local_subscriber_count")) == null) {
-                    Thread.sleep(50); // Short delay before re-checking
-                }
-    
-                // Parse the response as an integer
-                try {
-                    int brokerSubscriberCount = Integer.parseInt(response);
-                    totalSubscriberCount += brokerSubscriberCount;
-                    System.out.println("Received subscriber count: " + brokerSubscriberCount);
-                } catch (NumberFormatException e) {
-                    System.err.println("Invalid subscriber count received from broker: " + response);
-                }
-    
-            } catch (IOException | InterruptedException e) {
-                System.err.println("Error communicating with broker: " + e.getMessage());
-            }
+    // Ask every peer at once; a peer that does not answer is taken not to have the publisher
+    private boolean isPublisherConnectedAnywhere(String username) {
+        if (isPublisherConnected(username)) {
+            return true;
         }
-    
-        return totalSubscriberCount;  // Return the total count of subscribers across all brokers
-    }
-    
-    public int getTotalPublisherCount() {
-        int totalPublisherCount = getLocalPublisherCount();  // Start with the local publisher count
-        System.out.println(brokerBrokerHandlers.size() + " brokers connected.");
-    
+        List<CompletableFuture<String[]>> replies = new ArrayList<>();
         for (BrokerHandler brokerHandler : brokerBrokerHandlers) {
-            Socket brokerSocket = brokerHandler.getSocket();  // Get the broker's socket
-    
+            replies.add(brokerHandler.request(RPC_TIMEOUT_MS, "publisher_connected", username));
+        }
+        for (CompletableFuture<String[]> reply : replies) {
             try {
-                PrintWriter out = new PrintWriter(brokerSocket.getOutputStream(), true);
-                
-                // Send a request to the broker to get its local publisher count
-                out.println("get_local_publisher_count");
-                out.flush();
-    
-                // Poll the response map in BrokerHandler to get the result
-                String response;
-                while ((response = brokerHandler.getResponse("get_local_publisher_count")) == null) {
-                    Thread.sleep(50); // Short delay before re-checking
+                if (Boolean.parseBoolean(reply.get()[0])) {
+                    return true;
                 }
-    
-                // Parse the response as an integer
-                try {
-                    int brokerPublisherCount = Integer.parseInt(response);
-                    totalPublisherCount += brokerPublisherCount;
-                    System.out.println("Received publisher count: " + brokerPublisherCount);
-                } catch (NumberFormatException e) {
-                    System.err.println("Invalid publisher count received from broker: " + response);
-                }
-    
-            } catch (IOException | InterruptedException e) {
-                System.err.println("Error communicating with broker: " + e.getMessage());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return true;  // Leave the topics alone rather than guess
+            } catch (ExecutionException e) {
+                // Unreachable or too slow
             }
         }
-    
-        return totalPublisherCount;  // Return the total count of publishers across all brokers
+        return false;
     }
-    
 
-    public int getLocalPublisherCount() {
-        return this.pubClientHandlers.size();
-    }
-
-    public void removePublisherClientHandler(String username) {
-        for (ClientHandler clientHandler : pubClientHandlers) {
-            if (clientHandler.getUserName().equals(username)) {
-                // Remove the publisher's ClientHandler from the list
-                pubClientHandlers.remove(clientHandler);
-                System.out.println("Removed publisher ClientHandler for: " + username);
-                break; // Exit loop after finding and removing the publisher
-            }
-        }
+    public boolean isPublisherConnected(String username) {
+        return pubClientHandlers.containsKey(username);
     }
 
     public void removeSubscriberClientHandler(String username) {
-        for (ClientHandler clientHandler : subClientHandlers) {
-            if (clientHandler.getUserName().equals(username)) {
-                // Remove the publisher's ClientHandler from the list
-                subClientHandlers.remove(clientHandler);
-                System.out.println("Removed subscriber ClientHandler for: " + username);
-                break; // Exit loop after finding and removing the publisher
+        ClientHandler clientHandler = subClientHandlers.remove(username);
+        if (clientHandler != null) {
+            subscriberQuota.release();
+            clusterCounters.decrement(ClusterCounters.SUBSCRIBERS);
+            // Make sure no topic keeps delivering to the closed connection
+            for (String topicId : localTopicHandlers.keySet()) {
+                removeLocalTopicHandler(topicId, clientHandler);
             }
+            System.out.println("Removed subscriber ClientHandler for: " + username);
         }
     }
+
     public boolean isSubscribed(String topicId, String username) {
         ConcurrentHashMap<String, Subscriber> subscribers = topicSubscribers.get(topicId);
         return subscribers != null && subscribers.containsKey(username);
@@ -15,7 +15,7 @@ package com.example.broker;
 public class BrokerApp {
     public static void main(String[] args) {
         if (args.length < 2) {
-            System.out.println("Usage: java -jar broker.jar <port> <directoryServiceIP:port>");
+            System.out.println("Usage: java [-Dbroker.threads=virtual] [-Dbroker.logDir=<dir>] -jar broker.jar <port> <directoryServiceIP:port>");
             return;
         }
 
@@ -26,6 +26,9 @@ public class BrokerApp {
             // Create a new Broker instance with the port and directory service address
             Broker broker = new Broker(port, directoryServiceAddress);
 
+            // Deregister on a normal exit or Ctrl-C; a crashed broker is evicted once its lease expires
+            Runtime.getRuntime().addShutdownHook(new Thread(broker::shutdown));
+
             // Start the broker in a new thread using a Runnable
             Thread brokerThread = new Thread(() -> broker.start());
             brokerThread.start();
@@ -4,93 +4,276 @@
  * Student ID: 1196439
  *
  * Description: The BrokerHandler class manages communication between brokers. It is responsible for handling
- * inter-broker messaging, including topic synchronization and subscription updates across multiple brokers
- * in the network.
+ * inter-broker messaging, including topic synchronization and the topic interest each peer advertises, so
+ * published messages are only forwarded to brokers that have subscribers for them.
  * 
  * Date: 11/10/2024
  */
 package com.example.broker;
 
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.PrintWriter;
 import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
-import com.example.subscriber.Subscriber;
+public class BrokerHandler implements Runnable {
+    private static final int MAX_OPERATIONS_PER_FRAME = 1024;
+    private static final String[] CLOSE_MARKER = new String[0];  // Identity-compared, never sent
+    private static final int QUEUE_CAPACITY = Integer.getInteger("broker.peerQueueCapacity", 65536);
+    private static final int HIGH_WATERMARK = QUEUE_CAPACITY * 3 / 4;
+    private static final int LOW_WATERMARK = QUEUE_CAPACITY / 4;
 
-public class BrokerHandler extends Thread {
     private final Socket brokerSocket;
     private final Broker broker;
     private final String brokerAddress;
-    private PrintWriter out;
-    private final ConcurrentHashMap<String, String> responseMap; // Store responses
+    private final BrokerLink link;
+    private final ConcurrentHashMap<Long, CompletableFuture<String[]>> pendingRequests; // requestId -> reply
+    private final AtomicLong nextRequestId;
+    private final BlockingQueue<String[]> outboundQueue;  // Operations waiting for this peer's sender task
+    private final Set<String> interestedTopics;  // Topics the peer has local subscribers for
+    private final AtomicBoolean behind = new AtomicBoolean();  // Queue went past the high watermark and has not drained yet
+    private final AtomicBoolean overflowed = new AtomicBoolean();
 
-    public BrokerHandler(Socket brokerSocket, Broker broker, String brokerAddress) {
+    public BrokerHandler(Socket brokerSocket, Broker broker, String brokerAddress, int linkVersion) throws IOException {
         this.brokerSocket = brokerSocket;
         this.broker = broker;
         this.brokerAddress = brokerAddress;
-        this.responseMap = new ConcurrentHashMap<>();
+        this.link = new BrokerLink(brokerSocket, linkVersion);
+        this.pendingRequests = new ConcurrentHashMap<>();
+        this.nextRequestId = new AtomicLong();
+        this.outboundQueue = new LinkedBlockingQueue<>(QUEUE_CAPACITY);
+        this.interestedTopics = ConcurrentHashMap.newKeySet();
     }
 
     @Override
     public void run() {
-        try (BufferedReader in = new BufferedReader(new InputStreamReader(brokerSocket.getInputStream()));
-             PrintWriter out = new PrintWriter(brokerSocket.getOutputStream(), true)) {
-
-            this.out = out;
-            String inputLine;
-            while ((inputLine = in.readLine()) != null) {
-                handleResponseOrCommand(inputLine);  // Process incoming commands or responses
+        // The sender task owns all writes to this peer, so callers never wait on its socket
+        broker.submitTask(this::runSender);
+        try {
+            List<String[]> operations;
+            while ((operations = link.receive()) != null) {
+                for (String[] operation : operations) {
+                    handleResponseOrCommand(operation);  // Process incoming commands or responses
+                }
             }
 
         } catch (IOException e) {
-            System.err.println("Broker disconnected abruptly: " + brokerSocket.getInetAddress());
+            System.err.println("Broker disconnected abruptly: " + brokerSocket.getInetAddress() + " (" + e.getMessage() + ")");
         } finally {
             closeBrokerSocket();
+            outboundQueue.clear();  // Nothing more can be written, and the marker needs the room
+            outboundQueue.offer(CLOSE_MARKER);
+            failPendingRequests();
+            broker.removeBrokerHandler(this);
         }
     }
 
-    private void handleResponseOrCommand(String inputLine) {
-        System.out.println("Received message: " + inputLine);
-        
-        // Check for specific responses like subscriber_count or publisher_count
-        if (inputLine.startsWith("subscriber_count")) {  // Handle subscriber count
-            String[] parts = inputLine.split(" ");
-            if (parts.length == 2) {
-                try {
-                    int count = Integer.parseInt(parts[1]);
-                    responseMap.put("get_local_subscriber_count", String.valueOf(count));
-                } catch (NumberFormatException e) {
-                    System.err.println("Invalid subscriber count received: " + parts[1]);
+    // Queue an operation for the peer, e.g. send("synchronize_delete", topicId); never blocks the caller. A peer
+    // that falls a whole queue behind is disconnected rather than silently missing operations; it catches up
+    // when the link is set up again.
+    public void send(String... operation) {
+        if (!outboundQueue.offer(operation)) {
+            if (overflowed.compareAndSet(false, true)) {
+                System.err.println("Disconnecting broker " + brokerAddress + ": " + QUEUE_CAPACITY + " operations queued");
+                closeBrokerSocket();  // The reader then sees the failure and unregisters this link
+            }
+            return;
+        }
+        if (outboundQueue.size() >= HIGH_WATERMARK && behind.compareAndSet(false, true)) {
+            System.err.println("Broker " + brokerAddress + " is behind: " + outboundQueue.size() + " operations queued");
+        }
+    }
+
+    // Number of operations waiting to be sent to this peer
+    public int getQueueDepth() {
+        return outboundQueue.size();
+    }
+
+    // Queue messages published together to a topic as one synchronize_sequenced operation, carrying the sequence
+    // number this broker gave the first of them and the producer's tag if they have one; a text link splits fields
+    // on spaces, so it gets one untagged synchronize_message per message instead and the peer numbers them itself
+    public void sendMessages(String topicId, String producerId, long sequence, long firstSeq, List<String> messages) {
+        if (link.getVersion() == BrokerLink.TEXT_VERSION) {
+            for (String message : messages) {
+                send("synchronize_message", topicId, message);
+            }
+            return;
+        }
+        String[] operation = new String[messages.size() + 5];
+        operation[0] = "synchronize_sequenced";
+        operation[1] = topicId;
+        operation[2] = String.valueOf(firstSeq);
+        operation[3] = producerId == null ? "" : producerId;
+        operation[4] = String.valueOf(sequence);
+        for (int i = 0; i < messages.size(); i++) {
+            operation[i + 5] = messages.get(i);
+        }
+        send(operation);
+    }
+
+    // Send a request to the peer and complete the returned future with its reply fields.
+    // Replies are matched by request id, so any number of requests can be outstanding at once.
+    public CompletableFuture<String[]> request(long timeoutMs, String... operation) {
+        long requestId = nextRequestId.incrementAndGet();
+        CompletableFuture<String[]> reply = new CompletableFuture<>();
+        pendingRequests.put(requestId, reply);
+
+        String[] envelope = new String[operation.length + 2];
+        envelope[0] = "rpc_request";
+        envelope[1] = String.valueOf(requestId);
+        System.arraycopy(operation, 0, envelope, 2, operation.length);
+        send(envelope);
+
+        return reply.orTimeout(timeoutMs, TimeUnit.MILLISECONDS)
+                .whenComplete((fields, error) -> pendingRequests.remove(requestId));
+    }
+
+    // Drain the outbound queue, packing whatever has piled up into one frame per write
+    private void runSender() {
+        List<String[]> batch = new ArrayList<>();
+        try {
+            while (true) {
+                batch.add(outboundQueue.take());
+                outboundQueue.drainTo(batch, MAX_OPERATIONS_PER_FRAME - 1);
+
+                int closeAt = batch.indexOf(CLOSE_MARKER);
+                if (closeAt >= 0) {
+                    sendBatch(batch.subList(0, closeAt));
+                    break;
+                }
+                sendBatch(batch);
+                batch.clear();
+                if (outboundQueue.size() <= LOW_WATERMARK && behind.compareAndSet(true, false)) {
+                    System.out.println("Broker " + brokerAddress + " caught up");
                 }
             }
-        } else if (inputLine.startsWith("publisher_count")) {  // Handle publisher count
-            String[] parts = inputLine.split(" ");
-            if (parts.length == 2) {
+        } catch (IOException e) {
+            System.err.println("Error sending to broker " + brokerAddress + ": " + e.getMessage());
+            closeBrokerSocket();  // The reader then sees the failure and unregisters this link
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // An operation that cannot be encoded is refused before anything is written, so the rest of the batch is
+    // sent one operation at a time and only the bad one is dropped
+    private void sendBatch(List<String[]> batch) throws IOException {
+        try {
+            link.sendBatch(batch);
+        } catch (IllegalArgumentException e) {
+            for (String[] operation : batch) {
                 try {
-                    int count = Integer.parseInt(parts[1]);
-                    responseMap.put("get_local_publisher_count", String.valueOf(count));
-                } catch (NumberFormatException e) {
-                    System.err.println("Invalid publisher count received: " + parts[1]);
+                    link.send(operation);
+                } catch (IllegalArgumentException refused) {
+                    System.err.println("Dropped operation " + operation[0] + " to broker " + brokerAddress + ": " + refused.getMessage());
                 }
             }
-        } else if ("lock_ack".equals(inputLine)) {  // Store lock acknowledgment response
-            responseMap.put("request_lock", "lock_ack");
-        } else {
-            String[] parts = inputLine.split(" ");
-            if (parts.length > 0) {
-                String command = parts[0];
-                handleCommand(command, parts);  // Handle normal broker commands
+        }
+    }
+
+    private void handleResponseOrCommand(String[] parts) {
+        if (parts.length == 0) {
+            return;
+        }
+
+        switch (parts[0]) {
+            case "rpc_request":
+                handleRequest(parts);
+                break;
+            case "rpc_reply":
+            case "rpc_error":
+                handleReply(parts);
+                break;
+            default:
+                handleCommand(parts[0], parts);  // Handle normal broker commands
+        }
+    }
+
+    // rpc_request <requestId> <command> <args...>; answered with rpc_reply <requestId> <fields...>
+    private void handleRequest(String[] parts) {
+        if (parts.length < 3) {
+            System.err.println("Invalid rpc_request from broker " + brokerAddress + ".");
+            return;
+        }
+        String requestId = parts[1];
+        String command = parts[2];
+        try {
+            String[] result;
+            switch (command) {
+                case "quota_request":
+                    result = new String[] { String.valueOf(handleQuotaRequest(parts)) };
+                    break;
+                case "quota_renew":  // quota_renew <kind> <keep>; returns the units still lent
+                    result = new String[] { String.valueOf(broker.renewQuota(brokerAddress, parts[3], Integer.parseInt(parts[4]))) };
+                    break;
+                case "quota_status":  // quota_status <kind> <memberCount>; returns our excess, or -1
+                    result = new String[] { String.valueOf(broker.quotaExcess(parts[3], Integer.parseInt(parts[4]))) };
+                    break;
+                case "topic_lookup":  // topic_lookup <topicId>
+                    result = broker.handleTopicLookup(parts[3]);
+                    break;
+                case "topic_create":  // topic_create <topicId> <topicName> <username>
+                    result = broker.handleTopicCreate(parts[3], parts[4], parts[5]);
+                    break;
+                case "topic_list":  // topic_list [<afterTopicId>]
+                    result = broker.handleTopicList(parts.length > 3 ? parts[3] : null);
+                    break;
+                case "topic_seq":  // topic_seq <topicId>; the sequence number we would give the topic's next message
+                    result = new String[] { String.valueOf(broker.topicNextSeq(parts[3])) };
+                    break;
+                case "publisher_connected":  // publisher_connected <username>
+                    result = new String[] { String.valueOf(broker.isPublisherConnected(parts[3])) };
+                    break;
+                default:
+                    send("rpc_error", requestId, "Unknown request: " + command);
+                    return;
             }
+            String[] reply = new String[result.length + 2];
+            reply[0] = "rpc_reply";
+            reply[1] = requestId;
+            System.arraycopy(result, 0, reply, 2, result.length);
+            send(reply);
+        } catch (RuntimeException e) {
+            send("rpc_error", requestId, String.valueOf(e.getMessage()));
         }
     }
-    
-    
 
-    public String getResponse(String command) {
-        return responseMap.remove(command); // Retrieve and remove response
+    private void handleReply(String[] parts) {
+        if (parts.length < 2) {
+            return;
+        }
+        CompletableFuture<String[]> reply;
+        try {
+            reply = pendingRequests.remove(Long.parseLong(parts[1]));
+        } catch (NumberFormatException e) {
+            System.err.println("Invalid reply id from broker " + brokerAddress + ": " + parts[1]);
+            return;
+        }
+        if (reply == null) {
+            return;  // The request already timed out
+        }
+        if ("rpc_error".equals(parts[0])) {
+            reply.completeExceptionally(new IOException("Broker " + brokerAddress + ": " + (parts.length > 2 ? parts[2] : "error")));
+        } else {
+            reply.complete(Arrays.copyOfRange(parts, 2, parts.length));
+        }
+    }
+
+    private void failPendingRequests() {
+        IOException closed = new IOException("Connection to broker " + brokerAddress + " closed");
+        for (CompletableFuture<String[]> reply : pendingRequests.values()) {
+            reply.completeExceptionally(closed);
+        }
+        pendingRequests.clear();
     }
     
     private void handleCommand(String command, String[] parts) {
@@ -102,60 +285,34 @@ public class BrokerHandler extends Thread {
                 case "synchronize_message":
                     handleSynchronizeMessage(parts);
                     break;
-                case "synchronize_sub":
-                    handleSynchronizeSubscription(parts);
+                case "synchronize_sequenced":
+                    handleSynchronizeSequenced(parts);
                     break;
-                case "synchronize_unsub":
-                    handleSynchronizeUnsubscribe(parts);
+                case "interest_add":
+                case "interest_remove":
+                case "interest_sync":
+                    handleInterest(parts);
                     break;
                 case "synchronize_delete":
                     handleSynchronizeDelete(parts);
                     break;
-                case "request_lock":
-                    handleLockRequest();
-                    break;
-                case "release_lock":
-                    handleLockRelease();
-                    break;
-                case "get_local_subscriber_count":
-                    handleGetLocalSubscriberCount();
-                    break;
-                case "get_local_publisher_count":
-                    handleGetLocalPublisherCount();
+                case "counter_gossip":
+                    broker.mergeCounters(parts);
                     break;
                 default:
                     System.out.println("Invalid command for broker, Command: " + command);
             }
         } catch (Exception e) {
-            out.println("Error processing broker command: " + e.getMessage());
+            System.err.println("Error processing broker command " + command + ": " + e.getMessage());
         }
     }
 
-    private void handleGetLocalSubscriberCount() {
-        int localSubscriberCount = broker.getLocalSubscriberCount();
-        out.println("subscriber_count " + localSubscriberCount);  // Send the local subscriber count back to the requesting broker
-        out.flush();  // Ensure the message is sent
-    }
-    
-
-    private void handleGetLocalPublisherCount() {
-        int localPublisherCount = broker.getLocalPublisherCount();
-        out.println("publisher_count " + localPublisherCount);  // Send the local publisher count back to the requesting broker
-        out.flush();  // Ensure the message is sent
-    }    
-
-    private void handleLockRequest() {
-        // Lock this broker
-        broker.lock();
-    
-        // Send lock acknowledgment
-        out.println("lock_ack");
-        out.flush();
-    }
-
-    private void handleLockRelease() {
-        // Unlock this broker
-        broker.unlock();
+    // quota_request <kind> <amount> <urgent|background>, carried in an rpc_request; returns the units lent
+    private int handleQuotaRequest(String[] parts) {
+        if (parts.length != 6) {
+            throw new IllegalArgumentException("Usage: quota_request <kind> <amount> <urgent|background>");
+        }
+        return broker.lendQuota(brokerAddress, parts[3], Integer.parseInt(parts[4]), "urgent".equals(parts[5]));
     }
     
     private void handleSynchronizeDelete(String[] parts) {
@@ -164,10 +321,8 @@ public class BrokerHandler extends Thread {
     
             // Call the existing deleteTopic method in the broker
             broker.deleteTopic(topicId, false); // false to avoid re-synchronizing the deletion
-    
-            System.out.println("Synchronized deletion of topic: " + topicId);
         } else {
-            out.println("Invalid synchronize_delete message.");
+            System.err.println("Invalid synchronize_delete message from broker " + brokerAddress + ".");
         }
     }
 
@@ -178,57 +333,61 @@ public class BrokerHandler extends Thread {
             String username = parts[3];  // The username who created the topic
             broker.createSimpleTopic(username, topicId, topicName); // Only create topic, no further synchronized topic call to prevent recursion
         } else {
-            out.println("Invalid synchronize_topic message.");
+            System.err.println("Invalid synchronize_topic message from broker " + brokerAddress + ".");
         }
     }
     
-    private void handleSynchronizeUnsubscribe(String[] parts) {
-        if (parts.length == 3) {
-            String topicId = parts[1];
-            String subscriberId = parts[2];
-    
-            // Unsubscribe the subscriber from the topic with synchronization disabled to prevent recursion
-            broker.unsubscribe(topicId, subscriberId, false);
-    
-            // Optionally log the action or perform any necessary steps here
-            System.out.println("Synchronized unsubscription for subscriber: " + subscriberId + " from topic: " + topicId);
-        } else {
-            out.println("Invalid synchronize_unsub message.");
-        }
-    }
-    
-
     private void handleSynchronizeMessage(String[] parts) {
         if (parts.length >= 3) {
             String topicId = parts[1];
-            // Combine all elements from parts[2] onward into a single message string
-            StringBuilder messageBuilder = new StringBuilder(parts[2]);
-            for (int i = 3; i < parts.length; i++) {
-                messageBuilder.append(" ").append(parts[i]);
-            }
-            String message = messageBuilder.toString();
+            // A framed link carries the message as one field; a text link splits it on spaces, so rejoin the rest
+            String message = parts.length == 3 ? parts[2] : String.join(" ", Arrays.asList(parts).subList(2, parts.length));
             // Publish the message to the topic without synchronization
             broker.publishMessage(topicId, message, false);
         } else {
-            out.println("Invalid synchronize_message command.");
+            System.err.println("Invalid synchronize_message command from broker " + brokerAddress + ".");
         }
     }
     
 
-    private void handleSynchronizeSubscription(String[] parts) {
-        if (parts.length == 3) {
-            String topicId = parts[1];
-            String subscriberId = parts[2];
-    
-            // Add the subscriber ID to the broker's subscription list without creating a Subscriber object
-            broker.addSubscriberId(topicId, subscriberId, false);
-            
-            // Optionally, log the action or perform any necessary steps here
-            System.out.println("Synchronized subscription for subscriber: " + subscriberId + " to topic: " + topicId);
+    // synchronize_sequenced <topicId> <firstSeq> <producerId or empty> <sequence> <message>...; numbered as the
+    // publishing broker numbered them, and dropped if the producer's tag was already seen here
+    private void handleSynchronizeSequenced(String[] parts) {
+        if (parts.length >= 6) {
+            String producerId = parts[3].isEmpty() ? null : parts[3];
+            broker.publishMessages(parts[1], producerId, Long.parseLong(parts[4]), Long.parseLong(parts[2]),
+                    Arrays.asList(parts).subList(5, parts.length), false);
+        } else {
+            System.err.println("Invalid synchronize_sequenced command from broker " + brokerAddress + ".");
+        }
+    }
+
+    // interest_sync replaces the topics this peer has subscribers for; interest_add/interest_remove change them
+    private void handleInterest(String[] parts) {
+        List<String> topicIds = Arrays.asList(parts).subList(1, parts.length);
+        if ("interest_sync".equals(parts[0])) {
+            interestedTopics.clear();
+        }
+        if ("interest_remove".equals(parts[0])) {
+            interestedTopics.removeAll(topicIds);
         } else {
-            out.println("Invalid synchronize_sub message.");
+            interestedTopics.addAll(topicIds);
         }
     }
+
+    // True if the peer has local subscribers for the topic, so published messages need to go to it
+    public boolean hasInterest(String topicId) {
+        return interestedTopics.contains(topicId);
+    }
+
+    public void removeInterest(String topicId) {
+        interestedTopics.remove(topicId);
+    }
+
+    // True while the queue to this peer is above the high watermark
+    public boolean isBehind() {
+        return behind.get();
+    }
     
 
     private void closeBrokerSocket() {
@@ -245,4 +404,12 @@ public class BrokerHandler extends Thread {
         return this.brokerSocket;
     }
 
+    public String getBrokerAddress() {
+        return this.brokerAddress;
+    }
+
+    public void close() {
+        closeBrokerSocket();
+    }
+
 }
@@ -0,0 +1,235 @@
+/**
+ * Name: Simon Chen
+ * Surname: Chen
+ * Student ID: 1196439
+ *
+ * Description: The BrokerLink class carries broker-to-broker operations over one socket. Version 0 is the original
+ * space-separated text protocol; version 1 packs one or more operations into a length-prefixed binary frame:
+ *
+ *   frame     = version:u8 bodyLength:i32 body
+ *   body      = opCount:u16 operation*
+ *   operation = opcode:u8 fieldCount:u16 (fieldLength:i32 fieldBytes:UTF-8)*
+ *
+ * The version is agreed during the broker HANDSHAKE_INIT. Operations are handed around as String arrays whose
+ * first element is the command name, so handlers work the same whichever version a link speaks.
+ *
+ * Date: 17/10/2026
+ */
+package com.example.broker;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+public class BrokerLink {
+    public static final int TEXT_VERSION = 0;
+    public static final int FRAME_VERSION = 1;
+    public static final int LATEST_VERSION = FRAME_VERSION;
+    private static final int MAX_FRAME_LENGTH = 16 * 1024 * 1024;
+    private static final int MAX_FIELDS = 0xFFFF;  // The field count is written as an unsigned short
+
+    // Opcode is the index in this table; only ever append so existing opcodes keep their meaning
+    private static final String[] OPCODES = {
+        "synchronize_topic",
+        "synchronize_message",
+        "synchronize_sub",    // No longer sent; subscriptions stay local
+        "synchronize_unsub",  // No longer sent
+        "synchronize_delete",
+        "request_lock",  // No longer sent, kept so later opcodes keep their values
+        "lock_ack",      // No longer sent
+        "release_lock",  // No longer sent
+        "get_local_subscriber_count",  // No longer sent; counts are gossiped
+        "subscriber_count",            // No longer sent
+        "get_local_publisher_count",   // No longer sent; counts are gossiped
+        "publisher_count",             // No longer sent
+        "quota_request",               // Now sent as an rpc_request
+        "quota_grant",                 // No longer sent
+        "rpc_request",
+        "rpc_reply",
+        "rpc_error",
+        "counter_gossip",
+        "interest_add",
+        "interest_remove",
+        "interest_sync",
+        "reserved_21",  // Reserved, never sent; kept so later opcodes keep their values
+        "reserved_22",  // Reserved, never sent
+        "synchronize_sequenced",
+    };
+    private static final Map<String, Integer> OPCODE_IDS = new HashMap<>();
+
+    static {
+        for (int i = 0; i < OPCODES.length; i++) {
+            OPCODE_IDS.put(OPCODES[i], i);
+        }
+    }
+
+    private final int version;
+    private final OutputStream out;
+    private final DataInputStream frameIn;  // Used by version 1 links
+    private final BufferedReader textIn;    // Used by version 0 links
+
+    public BrokerLink(Socket socket, int version) throws IOException {
+        this.version = version;
+        this.out = new BufferedOutputStream(socket.getOutputStream());
+        if (version == TEXT_VERSION) {
+            this.textIn = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+            this.frameIn = null;
+        } else {
+            this.frameIn = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            this.textIn = null;
+        }
+    }
+
+    public int getVersion() {
+        return version;
+    }
+
+    // Send one operation, e.g. send("synchronize_delete", topicId)
+    public void send(String... operation) throws IOException {
+        sendBatch(Collections.singletonList(operation));
+    }
+
+    // Send several operations together; a version 1 link puts them all in a single frame
+    public void sendBatch(List<String[]> operations) throws IOException {
+        if (operations.isEmpty()) {
+            return;
+        }
+        if (version == TEXT_VERSION) {
+            StringBuilder lines = new StringBuilder();
+            for (String[] operation : operations) {
+                lines.append(String.join(" ", operation)).append('\n');
+            }
+            byte[] bytes = lines.toString().getBytes(StandardCharsets.UTF_8);
+            synchronized (out) {
+                out.write(bytes);
+                out.flush();
+            }
+            return;
+        }
+
+        byte[] frame = encodeFrame(operations);
+        synchronized (out) {
+            out.write(frame);
+            out.flush();
+        }
+    }
+
+    // Block for the next frame (or line) and return its operations; returns null once the peer closes the link
+    public List<String[]> receive() throws IOException {
+        if (version == TEXT_VERSION) {
+            String line = textIn.readLine();
+            if (line == null) {
+                return null;
+            }
+            return Collections.singletonList(line.split(" "));
+        }
+
+        int frameVersion;
+        try {
+            frameVersion = frameIn.readUnsignedByte();
+        } catch (EOFException e) {
+            return null;
+        }
+        if (frameVersion != version) {
+            throw new IOException("Unexpected broker frame version " + frameVersion + ", expected " + version);
+        }
+        int length = frameIn.readInt();
+        if (length < 2 || length > MAX_FRAME_LENGTH) {
+            throw new IOException("Invalid broker frame length: " + length);
+        }
+        byte[] body = new byte[length];
+        frameIn.readFully(body);
+        return decodeBody(ByteBuffer.wrap(body));
+    }
+
+    private byte[] encodeFrame(List<String[]> operations) throws IOException {
+        ByteArrayOutputStream bodyBytes = new ByteArrayOutputStream();
+        DataOutputStream body = new DataOutputStream(bodyBytes);
+        body.writeShort(operations.size());
+        for (String[] operation : operations) {
+            Integer opcode = OPCODE_IDS.get(operation[0]);
+            if (opcode == null) {
+                throw new IllegalArgumentException("No opcode for broker operation: " + operation[0]);
+            }
+            if (operation.length - 1 > MAX_FIELDS) {
+                throw new IllegalArgumentException("Too many fields for broker operation " + operation[0] + ": " + (operation.length - 1));
+            }
+            body.writeByte(opcode);
+            body.writeShort(operation.length - 1);
+            for (int i = 1; i < operation.length; i++) {
+                byte[] field = operation[i].getBytes(StandardCharsets.UTF_8);
+                body.writeInt(field.length);
+                body.write(field);
+            }
+        }
+        body.flush();
+        if (bodyBytes.size() > MAX_FRAME_LENGTH) {
+            throw new IllegalArgumentException("Broker frame too long: " + bodyBytes.size() + " bytes");
+        }
+
+        ByteArrayOutputStream frameBytes = new ByteArrayOutputStream(bodyBytes.size() + 5);
+        DataOutputStream frame = new DataOutputStream(frameBytes);
+        frame.writeByte(version);
+        frame.writeInt(bodyBytes.size());
+        bodyBytes.writeTo(frame);
+        frame.flush();
+        return frameBytes.toByteArray();
+    }
+
+    private static List<String[]> decodeBody(ByteBuffer body) throws IOException {
+        try {
+            int opCount = Short.toUnsignedInt(body.getShort());
+            List<String[]> operations = new ArrayList<>(opCount);
+            for (int op = 0; op < opCount; op++) {
+                int opcode = Byte.toUnsignedInt(body.get());
+                if (opcode >= OPCODES.length) {
+                    throw new IOException("Unknown broker opcode: " + opcode);
+                }
+                int fieldCount = Short.toUnsignedInt(body.getShort());
+                String[] operation = new String[fieldCount + 1];
+                operation[0] = OPCODES[opcode];
+                for (int i = 1; i <= fieldCount; i++) {
+                    int fieldLength = body.getInt();
+                    if (fieldLength < 0 || fieldLength > body.remaining()) {
+                        throw new IOException("Invalid broker field length: " + fieldLength);
+                    }
+                    operation[i] = new String(body.array(), body.position(), fieldLength, StandardCharsets.UTF_8);
+                    body.position(body.position() + fieldLength);
+                }
+                operations.add(operation);
+            }
+            return operations;
+        } catch (RuntimeException e) {
+            throw new IOException("Malformed broker frame", e);
+        }
+    }
+
+    // Read a handshake line straight from the socket, without buffering past it
+    public static String readHandshakeLine(InputStream in) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int b;
+        while ((b = in.read()) != -1 && b != '\n') {
+            line.write(b);
+        }
+        if (b == -1 && line.size() == 0) {
+            return null;
+        }
+        return line.toString(StandardCharsets.UTF_8.name()).trim();
+    }
+}
@@ -17,48 +17,126 @@ import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.PrintWriter;
+import java.io.StringWriter;
 import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 
-public class ClientHandler extends Thread {
+public class ClientHandler implements Runnable {
+    private static final int READ_BUFFER_SIZE = 1024;  // Client commands are short lines; keep idle connections small
+    private static final int MAX_BATCH_MESSAGES = Integer.getInteger("broker.maxBatchMessages", 1024);
+    private static final long CLOSE_DRAIN_MS = 1000;  // How long a closing connection waits for its last reply to be written
+    private static final int MAX_SKIPPED_BATCH_LINES = MAX_BATCH_MESSAGES * 4;  // Longest oversized batch read past instead of closing the connection
+
     private final Socket clientSocket;
     private final Broker broker;
     private final String username;  // Captured from the first line sent by the client
     private final String connectionType;  // Stores the type of connection (publisher, subscriber, or broker)
-    private PrintWriter out;
-    private BufferedReader in;
+    private final StringWriter replyBuffer;  // Collects the replies to the command being handled
+    private final PrintWriter out;
+    private OutboundWriter outbound;  // Single owner of the socket's output stream
+    private BufferedReader commandReader;  // Also read by commands that carry lines of their own, like publish_batch
+    private String requestTag;  // "#<id> " of the command being handled, prefixed to each line of its reply, or ""
+    private String producerId;  // From a "pid=<producerId>:<sequence> " prefix on the command being handled, or null
+    private long producerSequence;
+    private final Set<String> conflatedTopics;  // Topics subscribed with "conflate": only the latest pending message is kept
+    private final Set<String> sequencedTopics = new HashSet<>();  // Topics published to on this connection, numbering caught up
+    private boolean closeAfterReply;  // Set when the rest of the input can no longer be told apart from commands
 
     public ClientHandler(Socket socket, Broker broker, String username, String connectionType) {
         this.clientSocket = socket;
         this.broker = broker;
         this.username = username;
         this.connectionType = connectionType;
+        this.replyBuffer = new StringWriter();
+        this.out = new PrintWriter(replyBuffer);
+        this.requestTag = "";
+        this.conflatedTopics = ConcurrentHashMap.newKeySet();
         
         try {
-            // Initialize BufferedReader and PrintWriter from clientSocket's input/output streams
-            this.in = new BufferedReader(new InputStreamReader(clientSocket.getInputStream()));
-            this.out = new PrintWriter(clientSocket.getOutputStream(), true);
+            this.outbound = new OutboundWriter(clientSocket.getOutputStream(), clientSocket.getChannel(), username, this::closeClientSocket);
         } catch (IOException e) {
-            System.err.println("Error initializing input/output streams for client: " + e.getMessage());
+            System.err.println("Error initializing output stream for client: " + e.getMessage());
         }
     }
 
     @Override
     public void run() {
-        try (BufferedReader in = new BufferedReader(new InputStreamReader(clientSocket.getInputStream()));
-             PrintWriter out = new PrintWriter(clientSocket.getOutputStream(), true)) {
+        try (BufferedReader in = new BufferedReader(new InputStreamReader(clientSocket.getInputStream()), READ_BUFFER_SIZE)) {
 
-            this.out = out;
+            // The writer task drains this connection's outbound queue for as long as the client is connected
+            broker.submitTask(outbound);
             handleClientCommands(in);
 
         } catch (IOException e) {
             System.err.println("Client disconnected abruptly: " + clientSocket.getInetAddress());
         } finally {
+            // Clean up after a clean close and an abrupt one alike, so the client's quota unit is always returned
+            if (connectionType.equals("publisher")) {
+                handlePublisherCrash();
+            } else {
+                handleSubscriberCrash();
+            }
+            outbound.close();
             closeClientSocket();
         }
     }
 
+    // Queue a line for delivery to this client; never blocks the calling thread
+    public boolean deliver(String line) {
+        return outbound.send(line);
+    }
+
+    // Queue a topic's encoded line ending in '\n'; the same array may be shared with other subscribers
+    public boolean deliver(String topicId, byte[] line) {
+        if (conflatedTopics.contains(topicId)) {
+            return outbound.sendLatest(topicId, line);
+        }
+        return outbound.send(line);
+    }
+
+    // Under the BLOCK policy, wait for room for count of the topic's messages; a conflated topic needs none
+    public boolean awaitRoom(String topicId, int count, long deadline) {
+        if (conflatedTopics.contains(topicId)) {
+            return true;
+        }
+        return outbound.awaitRoom(count, deadline);
+    }
+
+    public OutboundWriter getOutbound() {
+        return outbound;
+    }
+
+    // Hand the replies produced by the last command to the writer task
+    private void flushReplies() {
+        out.flush();
+        StringBuffer buffer = replyBuffer.getBuffer();
+        if (buffer.length() > 0) {
+            sendReply(buffer.toString());
+            buffer.setLength(0);
+        }
+    }
+
+    // Queue a reply to the command being handled, tagged with its request ID if it had one
+    public void sendReply(String text) {
+        if (requestTag.isEmpty() || text.isEmpty()) {
+            outbound.sendReply(text);
+            return;
+        }
+        StringBuilder tagged = new StringBuilder(text.length() + requestTag.length());
+        for (String line : text.split("\n")) {
+            tagged.append(requestTag).append(line).append('\n');
+        }
+        outbound.sendReply(tagged.toString());
+    }
+
     private void handleClientCommands(BufferedReader in) throws IOException {
+        this.commandReader = in;
         // Print the IP address and port of the client
         String clientIP = clientSocket.getInetAddress().getHostAddress();
         int clientPort = clientSocket.getPort();
@@ -71,15 +149,35 @@ public class ClientHandler extends Thread {
             // Check if the client has disconnected
             if (inputLine == null) {
                 System.out.println("Client disconnected: " + clientIP + ":" + clientPort);
-                if (connectionType.equals("publisher")) {
-                    handlePublisherCrash();
-                } else {
-                    handleSubscriberCrash();
-                }
                 break;  // Exit the loop when the client disconnects
             }
     
             //System.out.println("Client Command: " + inputLine + " from " + connectionType + " at IP: " + clientIP + " Port: " + clientPort);
+            // "#<id> <command>" asks for the reply to carry the same "#<id> " prefix, so a client can keep many
+            // commands in flight on one connection and match the replies, which come back in order
+            requestTag = "";
+            if (inputLine.startsWith("#")) {
+                int space = inputLine.indexOf(' ');
+                if (space > 1) {
+                    requestTag = inputLine.substring(0, space + 1);
+                    inputLine = inputLine.substring(space + 1);
+                }
+            }
+            // "pid=<producerId>:<sequence> <command>" tags a publish so that a retry of it is recognised and dropped
+            producerId = null;
+            if (inputLine.startsWith("pid=")) {
+                int space = inputLine.indexOf(' ');
+                int colon = space < 0 ? -1 : inputLine.lastIndexOf(':', space);
+                try {
+                    producerSequence = Long.parseLong(inputLine.substring(colon + 1, space));
+                    producerId = inputLine.substring(4, colon);
+                } catch (RuntimeException e) {
+                    out.println("error: Usage: pid={producer_id}:{sequence} {command}");
+                    flushReplies();
+                    continue;
+                }
+                inputLine = inputLine.substring(space + 1);
+            }
             String[] parts = inputLine.split(" ");
     
             if (parts.length > 0) {
@@ -88,6 +186,12 @@ public class ClientHandler extends Thread {
             } else {
                 out.println("error: Invalid command.");
             }
+            flushReplies();
+            if (closeAfterReply) {
+                System.out.println("Closing connection from " + clientIP + ":" + clientPort + " after a malformed command");
+                outbound.closeAndDrain(CLOSE_DRAIN_MS);  // Let the client see why before the socket closes
+                break;
+            }
         }
     }
     
@@ -111,7 +215,7 @@ public class ClientHandler extends Thread {
         }
     }
 
-    private void handlePublisherCommands(String command, String[] parts) {
+    private void handlePublisherCommands(String command, String[] parts) throws IOException {
         switch (command) {
             case "create":
                 handleCreate(parts);
@@ -119,6 +223,9 @@ public class ClientHandler extends Thread {
             case "publish":
                 handlePublish(parts);
                 break;
+            case "publish_batch":
+                handlePublishBatch(parts);
+                break;
             case "show":
                 handleShow(parts);
                 break;
@@ -178,6 +285,9 @@ public class ClientHandler extends Thread {
                 // New case to handle topic listing
                 handleListAll();
                 break;
+            case "replay":
+                handleReplay(parts);
+                break;
             default:
                 out.println("error: Invalid command for subscriber.");
         }
@@ -189,12 +299,10 @@ public class ClientHandler extends Thread {
         if (parts.length == 3) {
             String topicId = parts[1];
             
-            // Check if the topic already exists
-            if (broker.topicExists(topicId)) {
+            // Create the topic if it doesn't exist; its home broker decides
+            if (!broker.createTopic(username, topicId, parts[2])) {
                 out.println("error: Topic with ID " + topicId + " already exists.");
             } else {
-                // Create the topic if it doesn't exist
-                broker.createTopic(username, topicId, parts[2]);
                 out.println("success: " + "Topic created: " + parts[2] + " (ID: " + topicId + ")");
             }
         } else {
@@ -231,19 +339,79 @@ public class ClientHandler extends Thread {
             String message = messageBuilder.toString();
             
             // Call the broker's method to publish the message and synchronize it across brokers
-            broker.publishMessage(topicId, message, true); // `true` means synchronization is needed
+            catchUpSequence(topicId);
+            boolean published = broker.publishMessages(topicId, producerId, producerSequence, Collections.singletonList(message), true); // `true` means synchronization is needed
             
-            // Generate timestamp and confirm successful publishing
+            // Generate timestamp and confirm successful publishing; a retry of a publish that already went out succeeds too
             String timestamp = new java.text.SimpleDateFormat("dd/MM HH:mm:ss").format(new java.util.Date());
-            out.println(timestamp + " " + topicId + ":" + broker.topicNames.get(topicId) + ": " + "Message published to topic: " + topicId);
+            out.println(timestamp + " " + topicId + ":" + broker.topicNames.get(topicId) + ": " + "Message published to topic: " + topicId + (published ? "" : " (duplicate, already published)"));
         } else {
             out.println("error: Usage: publish {topic_id} {message}");
         }
     }
+
+    // publish_batch {topic_id} {count}, followed by count lines that are each one message. The topic is checked
+    // once and the messages are published and replicated as a group, with a single reply.
+    private void handlePublishBatch(String[] parts) throws IOException {
+        long count;
+        try {
+            count = parts.length == 3 ? Long.parseLong(parts[2]) : Long.MAX_VALUE;
+        } catch (NumberFormatException e) {
+            count = Long.MAX_VALUE;  // No count to go by, so where the batch ends is unknown
+        }
+        if (count < 1 || count > MAX_BATCH_MESSAGES) {
+            out.println("error: Usage: publish_batch {topic_id} {count} with 1 to " + MAX_BATCH_MESSAGES + " messages on the following lines");
+            if (count > MAX_SKIPPED_BATCH_LINES) {
+                closeAfterReply = true;  // Too many lines to read past, or an unknown number of them
+            } else if (count > MAX_BATCH_MESSAGES) {
+                skipLines((int) count);  // Read past the messages, so none of them is taken for a command
+            }
+            return;
+        }
+
+        // Read the whole batch first, so an invalid batch does not leave its messages to be taken as commands
+        List<String> messages = new ArrayList<>((int) count);
+        for (int i = 0; i < count; i++) {
+            String message = commandReader.readLine();
+            if (message == null) {
+                throw new IOException("Client disconnected in the middle of a batch");
+            }
+            messages.add(message);
+        }
+
+        String topicId = parts[1];
+        if (!broker.topicExists(topicId)) {
+            out.println("error: Topic " + topicId + " does not exist.");
+            return;
+        }
+        if (!broker.isTopicOwner(topicId, username)) {
+            out.println("error: You are not the owner of topic " + topicId + ".");
+            return;
+        }
+
+        catchUpSequence(topicId);
+        boolean published = broker.publishMessages(topicId, producerId, producerSequence, messages, true);
+
+        String timestamp = new java.text.SimpleDateFormat("dd/MM HH:mm:ss").format(new java.util.Date());
+        out.println(timestamp + " " + topicId + ":" + broker.topicNames.get(topicId) + ": " + count + " messages published to topic: " + topicId + (published ? "" : " (duplicate, already published)"));
+    }
     
-    
+    // The first publish to a topic on this connection continues the numbering other brokers may have used
+    private void catchUpSequence(String topicId) {
+        if (sequencedTopics.add(topicId)) {
+            broker.catchUpSequence(topicId);
+        }
+    }
+
     private void handleSubscribe(String[] parts) {
-        if (parts.length == 2) {
+        // sub {topic_id}, or sub {topic_id} from {seq} to first receive the messages missed since seq;
+        // a trailing "conflate" asks for only the latest message whenever this client falls behind
+        boolean conflate = parts.length > 2 && "conflate".equals(parts[parts.length - 1]);
+        if (conflate) {
+            parts = Arrays.copyOf(parts, parts.length - 1);
+        }
+        boolean resume = parts.length == 4 && "from".equals(parts[2]);
+        if (parts.length == 2 || resume) {
             String topicId = parts[1];
     
             // Check if the topic exists in the broker
@@ -255,13 +423,36 @@ public class ClientHandler extends Thread {
             // Check if the user is already subscribed to the topic
             if (broker.isSubscribed(topicId, username)) {
                 out.println("error: " + username + " is already subscribed to topic: " + topicId);
+                return;
+            }
+            long fromSeq = -1;
+            if (resume) {
+                try {
+                    fromSeq = Long.parseLong(parts[3]);
+                } catch (NumberFormatException e) {
+                    out.println("error: Invalid sequence number: " + parts[3]);
+                    return;
+                }
+            }
+            if (conflate) {
+                conflatedTopics.add(topicId);  // Before subscribing, so the first message is already conflated
+            } else {
+                stopConflating(topicId);  // Left over if the topic was deleted while subscribed
+            }
+            if (resume) {
+                // The broker queues the reply itself, ahead of the replayed messages
+                broker.resumeSubscription(topicId, this, fromSeq);
             } else {
                 // Add the subscriber ID (username) directly to the broker without creating a Subscriber object
-                broker.addSubscriberId(topicId, username, true);
-                out.println("success: " + username + " subscribed to topic: " + topicId);
+                long nextSeq = broker.addSubscriberId(topicId, username);
+                if (nextSeq < 0) {
+                    out.println("error: Topic " + topicId + " does not exist.");
+                    return;
+                }
+                out.println("success: " + username + " subscribed to topic: " + topicId + " (next sequence " + nextSeq + ")");
             }
         } else {
-            out.println("error: Usage: sub {topic_id}");
+            out.println("error: Usage: sub {topic_id} [from {seq}] [conflate]");
         }
     }
     
@@ -275,8 +466,9 @@ public class ClientHandler extends Thread {
             if (!broker.isSubscribed(topicId, username)) {
                 out.println("error: " + username + " is not subscribed to topic: " + topicId);
             } else {
-                // Call the broker's unsubscribe method with synchronization set to true
-                broker.unsubscribe(topicId, username, true);
+                // Subscriptions are local, so nothing is synchronized with other brokers
+                broker.unsubscribe(topicId, username);
+                stopConflating(topicId);
                 out.println("success: " + username + " unsubscribed from topic: " + topicId);
             }
         } else {
@@ -284,6 +476,51 @@ public class ClientHandler extends Thread {
         }
     }
 
+    // replay {topic_id} {from_offset}: resend the topic's logged messages from that offset
+    private void handleReplay(String[] parts) {
+        if (parts.length != 3) {
+            out.println("error: Usage: replay {topic_id} {from_offset}");
+            return;
+        }
+        String topicId = parts[1];
+        long fromOffset;
+        try {
+            fromOffset = Long.parseLong(parts[2]);
+        } catch (NumberFormatException e) {
+            out.println("error: Invalid offset: " + parts[2]);
+            return;
+        }
+        if (!broker.topicExists(topicId)) {
+            out.println("error: Topic " + topicId + " does not exist.");
+            return;
+        }
+
+        List<FileRegion> regions = new ArrayList<>();
+        long endOffset = broker.readTopicLog(topicId, fromOffset, regions);
+        if (endOffset < 0) {
+            out.println("error: Message history is not enabled on this broker.");
+            return;
+        }
+        out.println("success: Replaying topic " + topicId + " from offset " + fromOffset + " to " + endOffset);
+
+        // The reply goes out first; the logged lines follow straight from the log files
+        flushReplies();
+        for (FileRegion region : regions) {
+            if (!outbound.sendFile(region)) {
+                break;  // The client stopped reading and has been disconnected
+            }
+        }
+    }
+
+    // Read and discard the given number of lines, e.g. the messages of a rejected batch
+    private void skipLines(int count) throws IOException {
+        for (int i = 0; i < count; i++) {
+            if (commandReader.readLine() == null) {
+                throw new IOException("Client disconnected in the middle of a batch");
+            }
+        }
+    }
+
     private void handleCurrent(String[] parts) {
         broker.listSubscriptions(out, username);
     }
@@ -316,18 +553,18 @@ public class ClientHandler extends Thread {
     
         // Remove the publisher's ClientHandler from pubClientHandlers
         broker.removePublisherClientHandler(username);
+
+        // Its topics go too, unless it reconnects within the grace period; a publisher that failed over to another
+        // broker has restored them there
+        broker.releasePublisherTopics(username);
+    }
     
-        // Iterate over all topics to find the ones created by this publisher
-        for (String topicId : broker.topicPublishers.keySet()) {
-            String publisher = broker.topicPublishers.get(topicId);
-            if (publisher.equals(username)) {
-                // Delete the topic and notify all subscribers
-                broker.deleteTopic(topicId, true); // true indicates that synchronization is required
-                System.out.println("Deleted topic " + topicId + " due to publisher crash: " + username);
-            }
+    private void stopConflating(String topicId) {
+        if (conflatedTopics.remove(topicId)) {
+            outbound.removeLatest(topicId);
         }
     }
-    
+
     private void handleSubscriberCrash() {
         System.out.println("Handling subscriber crash for: " + username);
 
@@ -339,7 +576,7 @@ public class ClientHandler extends Thread {
             ConcurrentHashMap<String, Subscriber> subscribers = broker.topicSubscribers.get(topicId);
             if (subscribers != null && subscribers.containsKey(username)) {
                 // Unsubscribe the subscriber from this topic
-                broker.unsubscribe(topicId, username, true); // true indicates that synchronization is required
+                broker.unsubscribe(topicId, username);
                 System.out.println("Unsubscribed " + username + " from topic " + topicId + " due to subscriber crash");
             }
         }
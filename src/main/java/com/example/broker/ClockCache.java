@@ -0,0 +1,46 @@
+/**
+ * Name: Simon Chen
+ * Surname: Chen
+ * Student ID: 1196439
+ *
+ * Description: The ClockCache class hands out the current "dd/MM HH:mm:ss" timestamp, already encoded. The
+ * timestamp only changes once a second, so it is formatted once per second and shared by every message sent
+ * during that second instead of being formatted for each one.
+ *
+ * Date: 17/10/2026
+ */
+package com.example.broker;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+
+public class ClockCache {
+    private static final DateTimeFormatter FORMAT = DateTimeFormatter.ofPattern("dd/MM HH:mm:ss").withZone(ZoneId.systemDefault());
+
+    // Immutable, so a reader always sees a matching second and text
+    private static class Tick {
+        final long second;
+        final byte[] encoded;
+
+        Tick(long second, byte[] encoded) {
+            this.second = second;
+            this.encoded = encoded;
+        }
+    }
+
+    private volatile Tick current = new Tick(-1, new byte[0]);
+
+    // The current timestamp as UTF-8; callers must not modify the returned array
+    public byte[] timestamp() {
+        long now = System.currentTimeMillis();
+        Tick tick = current;
+        if (tick.second != now / 1000) {
+            // Two threads may both format at a second boundary; either result is correct
+            tick = new Tick(now / 1000, FORMAT.format(Instant.ofEpochMilli(now)).getBytes(StandardCharsets.UTF_8));
+            current = tick;
+        }
+        return tick.encoded;
+    }
+}
@@ -0,0 +1,157 @@
+/**
+ * Name: Simon Chen
+ * Surname: Chen
+ * Student ID: 1196439
+ *
+ * Description: The ClusterCounters class keeps this broker's replicas of the cluster-wide counters: connected
+ * subscribers, connected publishers and the subscribers of each topic. Local changes are applied immediately and
+ * collected for the next gossip round; counters received from peers are merged in. Reads are local, and lag the
+ * rest of the cluster by at most one gossip interval plus the link delay. A topic's counter is removed when the topic
+ * is deleted, and gossip for it is ignored for a while afterwards so a peer that has not seen the delete yet
+ * cannot bring it back. Counter names are URL-encoded in the gossip, as topic IDs come from clients.
+ *
+ * Date: 17/10/2026
+ */
+package com.example.broker;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+public class ClusterCounters {
+    public static final String SUBSCRIBERS = "subscribers";
+    public static final String PUBLISHERS = "publishers";
+    private static final String TOPIC_PREFIX = "topic:";
+    private static final long REMOVED_TTL_MS = 60000;  // How long gossip for a removed counter is ignored
+
+    private final String ownAddress;
+    private final long incarnation;  // Distinguishes this run of the broker from earlier runs at the same address
+    private final ConcurrentHashMap<String, PNCounter> counters = new ConcurrentHashMap<>();  // name -> counter
+    private final Set<String> changed = ConcurrentHashMap.newKeySet();  // Names changed locally since the last gossip
+    private final ConcurrentHashMap<String, Long> removed = new ConcurrentHashMap<>();  // Removed name -> when
+
+    public ClusterCounters(String ownAddress) {
+        this.ownAddress = ownAddress;
+        this.incarnation = System.currentTimeMillis();
+    }
+
+    public static String topicCounter(String topicId) {
+        return TOPIC_PREFIX + topicId;
+    }
+
+    public long get(String name) {
+        PNCounter counter = counters.get(name);
+        return counter == null ? 0 : counter.value();
+    }
+
+    // What each broker contributes to a counter; brokers that never touched it are missing
+    public Map<String, Long> getByBroker(String name) {
+        PNCounter counter = counters.get(name);
+        return counter == null ? new HashMap<>() : counter.valuesByBroker();
+    }
+
+    public void increment(String name) {
+        removed.remove(name);  // e.g. a topic created again with the same ID
+        counter(name).increment(ownAddress, incarnation);
+        changed.add(name);
+    }
+
+    public void decrement(String name) {
+        counter(name).decrement(ownAddress, incarnation);
+        changed.add(name);
+    }
+
+    // Forget a counter, e.g. the subscriber count of a deleted topic; every broker removes its own replica
+    public void remove(String name) {
+        removed.put(name, System.currentTimeMillis());
+        counters.remove(name);
+        changed.remove(name);
+    }
+
+    // Accept gossip for a removed counter again, e.g. once a topic with the same ID is created
+    public void restore(String name) {
+        removed.remove(name);
+    }
+
+    // Fields for a counter_gossip operation holding only the counters changed since the last call
+    public List<String> drainChanged() {
+        long now = System.currentTimeMillis();
+        removed.values().removeIf(removedAt -> now - removedAt > REMOVED_TTL_MS);
+        List<String> fields = new ArrayList<>();
+        for (String name : new ArrayList<>(changed)) {
+            changed.remove(name);
+            PNCounter counter = counters.get(name);
+            if (counter != null) {  // Not removed meanwhile
+                fields.add(encode(name, counter));
+            }
+        }
+        return fields;
+    }
+
+    // Fields for a counter_gossip operation holding every counter, sent when a peer link opens
+    public List<String> encodeAll() {
+        List<String> fields = new ArrayList<>();
+        for (Map.Entry<String, PNCounter> counter : counters.entrySet()) {
+            fields.add(encode(counter.getKey(), counter.getValue()));
+        }
+        return fields;
+    }
+
+    // Merge one gossip field; entries of brokers outside the cluster, or of our own earlier runs, are ignored
+    public void merge(String field, Set<String> members) {
+        String[] entries = field.split(";");
+        String name;
+        try {
+            name = URLDecoder.decode(entries[0], "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);  // UTF-8 is always supported
+        }
+        if (removed.containsKey(name)) {
+            return;
+        }
+        PNCounter counter = counter(name);
+        for (int i = 1; i < entries.length; i++) {
+            String[] values = entries[i].split(",");
+            if (values.length != 4) {
+                continue;
+            }
+            String broker = values[0];
+            if (broker.equals(ownAddress) || !members.contains(broker)) {
+                continue;
+            }
+            counter.merge(broker, Long.parseLong(values[1]), Long.parseLong(values[2]), Long.parseLong(values[3]));
+        }
+    }
+
+    // Drop what departed brokers contributed once they leave the cluster map
+    public void retainBrokers(Set<String> members) {
+        Set<String> keep = new HashSet<>(members);
+        keep.add(ownAddress);
+        for (PNCounter counter : counters.values()) {
+            counter.retainBrokers(keep);
+        }
+    }
+
+    private PNCounter counter(String name) {
+        return counters.computeIfAbsent(name, k -> new PNCounter());
+    }
+
+    // "name;broker,incarnation,increments,decrements;...", with the name URL-encoded so it cannot contain ';' or ','
+    private static String encode(String name, PNCounter counter) {
+        String encodedName;
+        try {
+            encodedName = URLEncoder.encode(name, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);  // UTF-8 is always supported
+        }
+        String entries = counter.encode();
+        return entries.isEmpty() ? encodedName : encodedName + ";" + entries;
+    }
+}
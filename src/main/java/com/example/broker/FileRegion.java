@@ -0,0 +1,37 @@
+/**
+ * Name: Simon Chen
+ * Surname: Chen
+ * Student ID: 1196439
+ *
+ * Description: The FileRegion class names a byte range of an open file, so a connection's writer can send it
+ * straight from the file to the socket with FileChannel.transferTo instead of copying it through the heap.
+ *
+ * Date: 17/10/2026
+ */
+package com.example.broker;
+
+import java.nio.channels.FileChannel;
+
+public class FileRegion {
+    private final FileChannel channel;
+    private final long position;
+    private final long count;
+
+    public FileRegion(FileChannel channel, long position, long count) {
+        this.channel = channel;
+        this.position = position;
+        this.count = count;
+    }
+
+    public FileChannel getChannel() {
+        return channel;
+    }
+
+    public long getPosition() {
+        return position;
+    }
+
+    public long getCount() {
+        return count;
+    }
+}
@@ -0,0 +1,147 @@
+/**
+ * Name: Simon Chen
+ * Surname: Chen
+ * Student ID: 1196439
+ *
+ * Description: The HandshakeAcceptor class is the broker's non-blocking front end. It accepts connections on a
+ * Selector, reads each connection's HANDSHAKE_INIT line without dedicating a thread to it, and hands the parsed
+ * handshake to the broker's admission workers. Slow or silent clients therefore never hold up other connections.
+ *
+ * Date: 17/10/2026
+ */
+package com.example.broker;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+
+public class HandshakeAcceptor implements Runnable {
+    private static final int MAX_HANDSHAKE_LENGTH = 1024;  // A handshake line longer than this is rejected
+
+    private final ServerSocketChannel serverChannel;
+    private final Broker broker;
+    private final ExecutorService admissionPool;
+    private final List<SelectionKey> completedHandshakes = new ArrayList<>();
+
+    public HandshakeAcceptor(ServerSocketChannel serverChannel, Broker broker, ExecutorService admissionPool) {
+        this.serverChannel = serverChannel;
+        this.broker = broker;
+        this.admissionPool = admissionPool;
+    }
+
+    @Override
+    public void run() {
+        // Every acceptor has its own selector; several of them may share the one listening channel
+        try (Selector selector = Selector.open()) {
+            serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+
+            while (true) {
+                selector.select();
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    try {
+                        if (key.isAcceptable()) {
+                            accept(selector);
+                        } else if (key.isReadable()) {
+                            readHandshake(key);
+                        }
+                    } catch (IOException | RuntimeException e) {
+                        System.err.println("Error during connection handshake: " + e.getMessage());
+                        closeChannel(key);
+                    }
+                }
+                handOffCompletedHandshakes(selector);
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void accept(Selector selector) throws IOException {
+        SocketChannel channel = serverChannel.accept();
+        if (channel == null) {
+            return;  // Another acceptor took this connection
+        }
+        channel.configureBlocking(false);
+        channel.register(selector, SelectionKey.OP_READ, ByteBuffer.allocate(MAX_HANDSHAKE_LENGTH));
+    }
+
+    private void readHandshake(SelectionKey key) throws IOException {
+        SocketChannel channel = (SocketChannel) key.channel();
+        ByteBuffer buffer = (ByteBuffer) key.attachment();
+
+        if (channel.read(buffer) < 0) {
+            System.out.println("Connection closed before handshake: " + channel.getRemoteAddress());
+            closeChannel(key);
+            return;
+        }
+
+        int lineEnd = indexOfNewline(buffer);
+        if (lineEnd < 0) {
+            if (!buffer.hasRemaining()) {
+                System.err.println("Handshake too long, closing connection: " + channel.getRemoteAddress());
+                closeChannel(key);
+            }
+            return;
+        }
+
+        // Clients wait for HANDSHAKE_ACK before sending anything else, so the line is all there is to read
+        if (buffer.position() > lineEnd + 1) {
+            System.err.println("Unexpected data after handshake, closing connection: " + channel.getRemoteAddress());
+            closeChannel(key);
+            return;
+        }
+        key.attach(new String(buffer.array(), 0, lineEnd, StandardCharsets.UTF_8).trim());
+        key.cancel();
+        completedHandshakes.add(key);
+    }
+
+    private void handOffCompletedHandshakes(Selector selector) throws IOException {
+        if (completedHandshakes.isEmpty()) {
+            return;
+        }
+        // Flush the cancelled keys so the channels can go back into blocking mode for their handlers
+        selector.selectNow();
+        for (SelectionKey key : completedHandshakes) {
+            SocketChannel channel = (SocketChannel) key.channel();
+            String handshakeInit = (String) key.attachment();
+            try {
+                channel.configureBlocking(true);
+                admissionPool.submit(() -> broker.admitConnection(channel.socket(), handshakeInit));
+            } catch (IOException e) {
+                System.err.println("Error handing off connection: " + e.getMessage());
+                closeChannel(key);
+            }
+        }
+        completedHandshakes.clear();
+    }
+
+    private static int indexOfNewline(ByteBuffer buffer) {
+        byte[] bytes = buffer.array();
+        for (int i = 0; i < buffer.position(); i++) {
+            if (bytes[i] == '\n') {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static void closeChannel(SelectionKey key) {
+        key.cancel();
+        try {
+            key.channel().close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+}
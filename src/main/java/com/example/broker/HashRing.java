@@ -0,0 +1,71 @@
+/**
+ * Name: Simon Chen
+ * Surname: Chen
+ * Student ID: 1196439
+ *
+ * Description: The HashRing class is an immutable consistent-hash ring over the brokers in the directory's
+ * membership. Each topic's home broker is the first broker point at or after the topic's hash. Every broker
+ * appears at many points, so topics spread evenly, and a broker joining or leaving only moves the topics on the
+ * arcs next to its own points. The next distinct brokers clockwise are the ones that take a topic over if its
+ * home leaves. Brokers build the same ring from the same membership, so they agree on homes.
+ *
+ * Date: 17/10/2026
+ */
+package com.example.broker;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.TreeMap;
+
+public class HashRing {
+    private final TreeMap<Long, String> points = new TreeMap<>();  // Hash -> broker address
+
+    public HashRing(Collection<String> brokers, int pointsPerBroker) {
+        for (String broker : brokers) {
+            for (int i = 0; i < pointsPerBroker; i++) {
+                points.put(hash(broker + "#" + i), broker);
+            }
+        }
+    }
+
+    // The key's home followed by its successors: up to count distinct brokers, in the order they would take over
+    public List<String> homesOf(String key, int count) {
+        List<String> homes = new ArrayList<>(count);
+        long hash = hash(key);
+        for (String broker : points.tailMap(hash, true).values()) {
+            if (homes.size() == count) {
+                return homes;
+            }
+            if (!homes.contains(broker)) {
+                homes.add(broker);
+            }
+        }
+        for (String broker : points.headMap(hash, false).values()) {  // Wrap around
+            if (homes.size() == count) {
+                return homes;
+            }
+            if (!homes.contains(broker)) {
+                homes.add(broker);
+            }
+        }
+        return homes;
+    }
+
+    // The first 8 bytes of the MD5 digest: stable across JVMs, unlike String.hashCode, and well spread
+    private static long hash(String key) {
+        try {
+            byte[] digest = MessageDigest.getInstance("MD5").digest(key.getBytes(StandardCharsets.UTF_8));
+            long hash = 0;
+            for (int i = 0; i < 8; i++) {
+                hash = (hash << 8) | (digest[i] & 0xff);
+            }
+            return hash;
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("MD5 is not available", e);  // Every JVM is required to provide it
+        }
+    }
+}
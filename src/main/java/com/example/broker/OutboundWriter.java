@@ -0,0 +1,395 @@
+/**
+ * Name: Simon Chen
+ * Surname: Chen
+ * Student ID: 1196439
+ *
+ * Description: The OutboundWriter class owns the outgoing side of a client connection. Any thread may queue
+ * lines for the client without touching the socket; a single writer task drains everything that is pending,
+ * writes it through one long-lived buffered stream and flushes once per batch. Published messages are queued
+ * already encoded, so the same bytes go to every subscriber without any per-recipient work. A queued FileRegion is sent
+ * straight from its file to the socket with FileChannel.transferTo, between the lines queued around it.
+ * The queue is bounded. Once it passes the high watermark the client counts as a slow consumer until the writer
+ * drains it back to the low watermark, and the SlowConsumerPolicy decides what happens to published messages
+ * that do not fit. Queuing never waits: under BLOCK a local publisher waits for room with awaitRoom before it takes the
+ * topic's lock, and a client that still has no room for a message is disconnected rather than left with a gap
+ * it cannot see. Queue depth, lag and drops are kept per connection. A conflated topic holds at most one
+ * queued slot: a newer message replaces the one still waiting in it, so a client that is behind only gets the
+ * latest value.
+ *
+ * Date: 17/10/2026
+ */
+package com.example.broker;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+public class OutboundWriter implements Runnable {
+    private static final int QUEUE_CAPACITY = Integer.getInteger("broker.queueCapacity", 1024);
+    private static final int HIGH_WATERMARK = Integer.getInteger("broker.queueHighWatermark", QUEUE_CAPACITY * 3 / 4);
+    private static final int LOW_WATERMARK = Integer.getInteger("broker.queueLowWatermark", QUEUE_CAPACITY / 4);
+    private static final SlowConsumerPolicy POLICY = SlowConsumerPolicy.fromProperty("broker.slowConsumerPolicy", SlowConsumerPolicy.DROP_NEWEST);
+    private static final long GRACE_MS = Long.getLong("broker.slowConsumerGraceMs", 5000);  // Longest a BLOCK waits, and how long DISCONNECT tolerates
+    private static final int WRITE_BUFFER_SIZE = 4096;
+    private static final String CLOSE_MARKER = new String("CLOSE");  // Identity-compared, never sent
+
+    private final BlockingQueue<Object> queue;  // Lines (String), encoded lines (byte[]), file ranges (FileRegion) and conflated slots
+    private final ConcurrentHashMap<String, AtomicReference<byte[]>> latestSlots;  // Conflated topicId -> line waiting to be written
+    private final BufferedOutputStream writer;
+    private final WritableByteChannel channel;  // Target of transferTo for queued file ranges
+    private final String owner;  // Used in log output only
+    private final Runnable onDisconnect;  // Closes the connection when the DISCONNECT policy gives up on the client
+    private volatile boolean closed;
+
+    // Lag metrics
+    private final AtomicLong queued = new AtomicLong();   // Items accepted into the queue
+    private final AtomicLong written = new AtomicLong();  // Items written to the socket
+    private final AtomicLong dropped = new AtomicLong();  // Published messages dropped because the client fell behind
+    private final AtomicLong conflated = new AtomicLong();  // Published messages replaced by a newer one before being written
+    private volatile long slowSince;  // When the queue last passed the high watermark, or 0 once it is back at the low one
+    private final AtomicBoolean disconnecting = new AtomicBoolean();
+    private final CountDownLatch finished = new CountDownLatch(1);  // Released when the writer task ends
+    private final Object room = new Object();  // Publishers waiting in awaitRoom wait on this
+    private int roomWaiters;  // Guarded by room
+
+    // socketChannel may be null for a socket that was not opened from a channel; file ranges are then copied
+    public OutboundWriter(OutputStream outputStream, WritableByteChannel socketChannel, String owner, Runnable onDisconnect) {
+        // A linked queue only allocates for queued lines, so idle connections cost next to nothing
+        this.queue = new LinkedBlockingQueue<>(QUEUE_CAPACITY);
+        this.latestSlots = new ConcurrentHashMap<>();
+        this.writer = new BufferedOutputStream(outputStream, WRITE_BUFFER_SIZE);
+        this.channel = socketChannel != null ? socketChannel : Channels.newChannel(outputStream);
+        this.owner = owner;
+        this.onDisconnect = onDisconnect;
+        this.closed = false;
+    }
+
+    // Queue a line; returns false if it had to be dropped. Never waits, so it is safe under a topic's lock
+    public boolean send(String line) {
+        return offer(line);
+    }
+
+    // Queue an encoded line ending in '\n', e.g. a published message shared by all its recipients; never modified here
+    public boolean send(byte[] line) {
+        return offer(line);
+    }
+
+    // Queue an encoded line for a conflated topic; if the topic's previous line has not been written yet it is replaced
+    public boolean sendLatest(String key, byte[] line) {
+        if (closed) {
+            return false;
+        }
+        AtomicReference<byte[]> slot = latestSlots.computeIfAbsent(key, k -> new AtomicReference<>());
+        if (slot.getAndSet(line) != null) {
+            conflated.incrementAndGet();
+            return true;  // The slot is already queued and will now write this line
+        }
+        if (!offer(slot)) {
+            slot.compareAndSet(line, null);
+            return false;
+        }
+        return true;
+    }
+
+    // Stop conflating a topic; a line already waiting in its slot is still written
+    public void removeLatest(String key) {
+        latestSlots.remove(key);
+    }
+
+    private boolean offer(Object item) {
+        if (closed) {
+            return false;
+        }
+        boolean accepted;
+        queued.incrementAndGet();  // Counted first, so the writer can never get ahead of it
+        switch (POLICY) {
+            case BLOCK:
+                // The publisher already waited in awaitRoom; a message forwarded by another broker does not wait at
+                // all. Either way a client left without room would silently miss the message, so it is
+                // disconnected, and can resume from its last sequence number.
+                accepted = queue.offer(item);
+                if (!accepted && !closed) {
+                    System.err.println("Client " + owner + " has no room for a message under the BLOCK policy.");
+                    disconnect();
+                }
+                break;
+            case DROP_OLDEST:
+                accepted = queue.offer(item) || (dropOldestMessage() && queue.offer(item));
+                break;
+            default:
+                accepted = queue.offer(item);
+        }
+        if (!accepted) {
+            queued.decrementAndGet();
+            if (dropped.getAndIncrement() == 0) {
+                System.err.println("Outbound queue full for " + owner + ", dropping messages (policy " + POLICY + ").");
+            }
+        }
+        checkHighWatermark();
+        return accepted;
+    }
+
+    // Under BLOCK, wait until the queue has room for count more items or the deadline passes, without holding any
+    // topic's lock; a local publisher calls this for each subscriber before publishing, so backpressure reaches the
+    // publisher and never a broker link. A client that makes no room by the deadline is disconnected. Returns
+    // false if the client is or was then disconnected.
+    public boolean awaitRoom(int count, long deadline) {
+        if (POLICY != SlowConsumerPolicy.BLOCK) {
+            return !closed;
+        }
+        int needed = Math.min(count, QUEUE_CAPACITY);
+        synchronized (room) {
+            roomWaiters++;
+            try {
+                while (!closed && queue.remainingCapacity() < needed) {
+                    long remaining = deadline - System.currentTimeMillis();
+                    if (remaining <= 0) {
+                        break;
+                    }
+                    room.wait(remaining);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            } finally {
+                roomWaiters--;
+            }
+        }
+        if (!closed && queue.remainingCapacity() < needed) {
+            System.err.println("Client " + owner + " made no room before the " + GRACE_MS + " ms grace period ran out.");
+            disconnect();
+        }
+        return !closed;
+    }
+
+    // Longest a publisher waits in awaitRoom, as a deadline for all of a publish's subscribers together
+    public static long roomDeadline() {
+        return System.currentTimeMillis() + GRACE_MS;
+    }
+
+    private void wakeRoomWaiters() {
+        synchronized (room) {
+            if (roomWaiters > 0) {
+                room.notifyAll();
+            }
+        }
+    }
+
+    // Make room by removing the oldest queued published message; replies and file ranges are never dropped
+    private boolean dropOldestMessage() {
+        Iterator<Object> iterator = queue.iterator();
+        while (iterator.hasNext()) {
+            if (iterator.next() instanceof byte[]) {
+                iterator.remove();
+                queued.decrementAndGet();  // It will never be written
+                dropped.incrementAndGet();
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void checkHighWatermark() {
+        if (queue.size() < HIGH_WATERMARK) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        long since = slowSince;
+        if (since == 0) {
+            slowSince = now;
+            System.err.println("Slow consumer " + owner + ": " + getMetrics());
+        } else if (POLICY == SlowConsumerPolicy.DISCONNECT && now - since >= GRACE_MS) {
+            disconnect();
+        }
+    }
+
+    // Give up on a client that stayed above the high watermark for too long, or that stopped reading its replies
+    // or, under BLOCK, its messages
+    private void disconnect() {
+        if (!disconnecting.compareAndSet(false, true)) {
+            return;
+        }
+        System.err.println("Disconnecting slow consumer " + owner + ": " + getMetrics());
+        closed = true;
+        queue.clear();
+        queue.offer(CLOSE_MARKER);
+        wakeRoomWaiters();
+        onDisconnect.run();  // Its read loop then ends and cleans up like any other disconnect
+    }
+
+    // Queue a reply to the client's own command, waiting for space rather than dropping it. A client whose queue
+    // stays full for GRACE_MS is not reading, and is disconnected.
+    public void sendReply(String text) {
+        if (!text.isEmpty()) {
+            put(text);
+        }
+    }
+
+    // Queue an encoded line the client asked for, such as a replayed message, waiting for space like sendReply;
+    // returns false if the client was disconnected instead
+    public boolean sendReply(byte[] line) {
+        return put(line);
+    }
+
+    // Queue a range of a file to be sent as it is, e.g. a catch-up read from a topic log
+    public boolean sendFile(FileRegion region) {
+        return put(region);
+    }
+
+    private boolean put(Object item) {
+        if (closed) {
+            return false;
+        }
+        queued.incrementAndGet();
+        try {
+            if (queue.offer(item, GRACE_MS, TimeUnit.MILLISECONDS)) {
+                return true;
+            }
+            queued.decrementAndGet();
+            System.err.println("Client " + owner + " stopped reading its replies.");
+            disconnect();
+        } catch (InterruptedException e) {
+            queued.decrementAndGet();
+            Thread.currentThread().interrupt();
+        }
+        return false;
+    }
+
+    public int getQueueDepth() {
+        return queue.size();
+    }
+
+    // Items queued but not yet written, including any waiting in the current batch
+    public long getLag() {
+        return queued.get() - written.get();
+    }
+
+    public long getDroppedCount() {
+        return dropped.get();
+    }
+
+    // How long the client has been above the high watermark without draining back to the low one, or 0
+    public long getSlowMillis() {
+        long since = slowSince;
+        return since == 0 ? 0 : System.currentTimeMillis() - since;
+    }
+
+    public boolean isSlow() {
+        return slowSince != 0;
+    }
+
+    public String getMetrics() {
+        return "depth " + getQueueDepth() + ", lag " + getLag() + ", dropped " + getDroppedCount() + ", conflated " + conflated.get()
+                + ", slow for " + getSlowMillis() + " ms";
+    }
+
+    // Stop accepting new lines; whatever is already queued is still written
+    public void close() {
+        closed = true;
+        queue.offer(CLOSE_MARKER);
+    }
+
+    // Close, then wait up to timeoutMs for the writer to finish, e.g. so a last error reply goes out before the socket closes
+    public void closeAndDrain(long timeoutMs) {
+        close();
+        try {
+            finished.await(timeoutMs, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public void run() {
+        List<Object> batch = new ArrayList<>();
+        try {
+            while (true) {
+                batch.add(queue.take());
+                queue.drainTo(batch);  // Coalesce everything that piled up into a single flush
+
+                boolean closeRequested = false;
+                int count = 0;
+                for (Object item : batch) {
+                    if (item == CLOSE_MARKER) {
+                        closeRequested = true;
+                        break;
+                    }
+                    if (item instanceof byte[]) {
+                        writer.write((byte[]) item);
+                    } else if (item instanceof AtomicReference) {
+                        // Take the slot's latest line; a line set after this queues the slot again
+                        @SuppressWarnings("unchecked")
+                        byte[] line = ((AtomicReference<byte[]>) item).getAndSet(null);
+                        if (line != null) {
+                            writer.write(line);
+                        }
+                    } else if (item instanceof FileRegion) {
+                        writer.flush();  // Everything queued before the range goes out first
+                        transfer((FileRegion) item);
+                    } else {
+                        String line = (String) item;
+                        writer.write(line.getBytes(StandardCharsets.UTF_8));
+                        if (!line.endsWith("\n")) {
+                            writer.write('\n');
+                        }
+                    }
+                    count++;
+                }
+                writer.flush();
+                written.addAndGet(count);
+                batch.clear();
+                if (POLICY == SlowConsumerPolicy.BLOCK) {
+                    wakeRoomWaiters();
+                }
+
+                if (slowSince != 0 && queue.size() <= LOW_WATERMARK) {
+                    System.out.println("Consumer " + owner + " caught up: " + getMetrics());
+                    slowSince = 0;
+                }
+
+                if (closeRequested) {
+                    break;
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("Error writing to client " + owner + ": " + e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            closed = true;
+            queue.clear();
+            wakeRoomWaiters();
+            finished.countDown();
+        }
+    }
+
+    private void transfer(FileRegion region) throws IOException {
+        long position = region.getPosition();
+        long end = position + region.getCount();
+        try {
+            while (position < end) {
+                position += region.getChannel().transferTo(position, end - position, channel);
+            }
+        } catch (ClosedChannelException e) {
+            if (region.getChannel().isOpen()) {
+                throw e;  // The socket closed
+            }
+            // The log was closed, e.g. its topic was deleted; skip the rest of the range
+        }
+    }
+}
@@ -0,0 +1,113 @@
+/**
+ * Name: Simon Chen
+ * Surname: Chen
+ * Student ID: 1196439
+ *
+ * Description: The PNCounter class is a counter CRDT that every broker can update locally and merge from its peers
+ * in any order. Each broker owns one entry holding its increments and decrements; the value is the sum of all
+ * entries. An entry also records the incarnation of the broker process, so a restarted broker starts again from
+ * zero instead of being outvoted by the totals its previous run left behind.
+ *
+ * Date: 17/10/2026
+ */
+package com.example.broker;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+public class PNCounter {
+
+    private static class Entry {
+        final long incarnation;
+        long increments;
+        long decrements;
+
+        Entry(long incarnation, long increments, long decrements) {
+            this.incarnation = incarnation;
+            this.increments = increments;
+            this.decrements = decrements;
+        }
+    }
+
+    private final Map<String, Entry> entries = new HashMap<>();  // broker address -> that broker's entry
+    private volatile long value;  // Kept up to date on every change so reads never walk the entries
+
+    public long value() {
+        return value;
+    }
+
+    // Each broker's own contribution, e.g. the connections it holds
+    public synchronized Map<String, Long> valuesByBroker() {
+        Map<String, Long> values = new HashMap<>();
+        for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+            values.put(entry.getKey(), entry.getValue().increments - entry.getValue().decrements);
+        }
+        return values;
+    }
+
+    public synchronized void increment(String broker, long incarnation) {
+        ownEntry(broker, incarnation).increments++;
+        value++;
+    }
+
+    public synchronized void decrement(String broker, long incarnation) {
+        ownEntry(broker, incarnation).decrements++;
+        value--;
+    }
+
+    // Merge one entry received from a peer; returns true if it changed this counter
+    public synchronized boolean merge(String broker, long incarnation, long increments, long decrements) {
+        Entry current = entries.get(broker);
+        if (current == null || incarnation > current.incarnation) {
+            entries.put(broker, new Entry(incarnation, increments, decrements));
+        } else if (incarnation == current.incarnation
+                && (increments > current.increments || decrements > current.decrements)) {
+            current.increments = Math.max(current.increments, increments);
+            current.decrements = Math.max(current.decrements, decrements);
+        } else {
+            return false;
+        }
+        recompute();
+        return true;
+    }
+
+    // Forget the entries of brokers that are no longer in the cluster; their connections went with them
+    public synchronized void retainBrokers(Set<String> brokers) {
+        if (entries.keySet().retainAll(brokers)) {
+            recompute();
+        }
+    }
+
+    // Entries as "broker,incarnation,increments,decrements" separated by ';' (no spaces, so text links carry it as one field)
+    public synchronized String encode() {
+        StringBuilder encoded = new StringBuilder();
+        for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+            if (encoded.length() > 0) {
+                encoded.append(';');
+            }
+            Entry e = entry.getValue();
+            encoded.append(entry.getKey()).append(',').append(e.incarnation)
+                    .append(',').append(e.increments).append(',').append(e.decrements);
+        }
+        return encoded.toString();
+    }
+
+    private Entry ownEntry(String broker, long incarnation) {
+        Entry entry = entries.get(broker);
+        if (entry == null || entry.incarnation != incarnation) {
+            entry = new Entry(incarnation, 0, 0);
+            entries.put(broker, entry);
+            recompute();
+        }
+        return entry;
+    }
+
+    private void recompute() {
+        long total = 0;
+        for (Entry entry : entries.values()) {
+            total += entry.increments - entry.decrements;
+        }
+        value = total;
+    }
+}
@@ -0,0 +1,55 @@
+/**
+ * Name: Simon Chen
+ * Surname: Chen
+ * Student ID: 1196439
+ *
+ * Description: The ProducerDedup class drops publishes that a broker has already seen. Publishers tag each
+ * publish with their producer ID and a sequence number that only ever increases, so one high watermark per
+ * producer is enough to recognise a retried publish, whether it comes from the client or from another broker.
+ * Producers that stay quiet long enough are forgotten.
+ *
+ * Date: 17/10/2026
+ */
+package com.example.broker;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+public class ProducerDedup {
+
+    private static final class Watermark {
+        final long sequence;
+        final long seenAt;
+
+        Watermark(long sequence, long seenAt) {
+            this.sequence = sequence;
+            this.seenAt = seenAt;
+        }
+    }
+
+    private final ConcurrentHashMap<String, Watermark> watermarks = new ConcurrentHashMap<>();  // Producer ID -> highest sequence seen
+    private final long idleMs;
+
+    public ProducerDedup(long idleMs) {
+        this.idleMs = idleMs;
+    }
+
+    // True if the publish is new and should go ahead; its sequence becomes the producer's high watermark
+    public boolean accept(String producerId, long sequence) {
+        long now = System.currentTimeMillis();
+        boolean[] accepted = new boolean[1];
+        watermarks.compute(producerId, (id, watermark) -> {
+            if (watermark == null || sequence > watermark.sequence) {
+                accepted[0] = true;
+                return new Watermark(sequence, now);
+            }
+            return new Watermark(watermark.sequence, now);
+        });
+        return accepted[0];
+    }
+
+    // Forget producers not heard from for idleMs; one retrying after that long may be published twice
+    public void evictIdle() {
+        long cutoff = System.currentTimeMillis() - idleMs;
+        watermarks.values().removeIf(watermark -> watermark.seenAt < cutoff);
+    }
+}
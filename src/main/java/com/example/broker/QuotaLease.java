@@ -0,0 +1,250 @@
+/**
+ * Name: Simon Chen
+ * Surname: Chen
+ * Student ID: 1196439
+ *
+ * Description: The QuotaLease class holds this broker's share of a cluster-wide connection limit. The limit is
+ * split evenly over the brokers in the cluster map, and brokers lend spare units to each other on request, so
+ * most admissions are decided locally without any round trip. Each pair of brokers has at most one loan in each
+ * direction, and it expires a fixed time after it was last granted or renewed: the lender gets its units back
+ * even if a grant never reached the borrower. A borrower renews its loans shortly before they expire, keeping
+ * the units it still has in use and returning the rest; a renewal only extends the existing loan, so it never
+ * competes with new requests for the lender's spare units. The borrower dates a loan from when it sent the
+ * request and lowers its own count before sending a renewal, so it never counts a unit the lender has taken
+ * back. When a share grows, the extra units are held back until the other brokers no longer hold connections
+ * above their own new shares. Loans to or from a broker that leaves the cluster are dropped when the shares
+ * are recomputed.
+ *
+ * Date: 17/10/2026
+ */
+package com.example.broker;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+public class QuotaLease {
+    private static final long LOAN_TTL_MS = Long.getLong("broker.quotaLoanMs", 5000);
+    private static final long RENEW_MARGIN_MS = LOAN_TTL_MS / 2;  // Renewals start this long before a loan expires, leaving room for retries
+
+    private final String kind;  // "subscriber" or "publisher", used in log output and broker operations
+    private final int totalLimit;
+    private final Map<String, Loan> borrowed = new HashMap<>();  // Lender address -> units borrowed from it
+    private final Map<String, Loan> lent = new HashMap<>();      // Borrower address -> units lent to it
+    private final Map<String, Integer> pendingRequests = new HashMap<>();  // Lender address -> loan requests awaiting a reply
+    private int baseShare;  // Zero until the first cluster map arrives
+    private int heldBack;   // Part of baseShare not usable until the other brokers have given up their excess
+    private int memberCount;  // Brokers in the map the share was computed from
+    private int used;
+
+    private static final class Loan {
+        int units;
+        long expiresAt;
+    }
+
+    public QuotaLease(String kind, int totalLimit) {
+        this.kind = kind;
+        this.totalLimit = totalLimit;
+    }
+
+    public String getKind() {
+        return kind;
+    }
+
+    // Take one unit for a new connection if this broker has one to spare
+    public synchronized boolean tryAcquire() {
+        if (used < capacity()) {
+            used++;
+            return true;
+        }
+        return false;
+    }
+
+    // Wait up to timeoutMs for a loan to arrive, then try to take a unit
+    public synchronized boolean tryAcquire(long timeoutMs) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMs;
+        while (used >= capacity()) {
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0) {
+                return false;
+            }
+            wait(remaining);
+        }
+        used++;
+        return true;
+    }
+
+    public synchronized void release() {
+        if (used > 0) {
+            used--;
+        }
+    }
+
+    public synchronized int spare() {
+        return Math.max(0, capacity() - used);
+    }
+
+    // Units to ask the peers for so one more connection can be admitted
+    public synchronized int shortfall() {
+        return Math.max(0, used + 1 - capacity());
+    }
+
+    // Lend up to half of our spare units (at least one, if we have any) to a peer that asked; the peer's whole
+    // loan then runs for another LOAN_TTL_MS
+    public synchronized int lend(String peer, int requested) {
+        int granted = Math.min(requested, (spare() + 1) / 2);
+        if (granted > 0) {
+            Loan loan = lent.computeIfAbsent(peer, k -> new Loan());
+            loan.units += granted;
+            loan.expiresAt = System.currentTimeMillis() + LOAN_TTL_MS;
+        }
+        return granted;
+    }
+
+    // A borrower renews its loan, keeping up to keep units and returning the rest; spare units play no part, as
+    // the kept units are still lent. Returns the units the loan now holds.
+    public synchronized int renew(String peer, int keep) {
+        capacity();  // Drops expired loans first
+        Loan loan = lent.get(peer);
+        if (loan == null) {
+            return 0;
+        }
+        loan.units = Math.min(loan.units, keep);
+        if (loan.units == 0) {
+            lent.remove(peer);
+        } else {
+            loan.expiresAt = System.currentTimeMillis() + LOAN_TTL_MS;
+        }
+        notifyAll();  // Returned units may admit a waiting connection
+        return loan.units;
+    }
+
+    // Note a loan request to a peer; no renewal is sent to it until the request is answered or times out,
+    // since the peer would otherwise count a grant it makes after our renewal decided what to keep
+    public synchronized void requestSent(String peer) {
+        pendingRequests.merge(peer, 1, Integer::sum);
+    }
+
+    public synchronized void requestDone(String peer) {
+        pendingRequests.computeIfPresent(peer, (k, pending) -> pending > 1 ? pending - 1 : null);
+    }
+
+    // Count units a peer granted; requestedAt is when we asked, which is never later than when the peer granted them
+    public synchronized void addBorrowed(String peer, int amount, long requestedAt) {
+        long expiresAt = requestedAt + LOAN_TTL_MS;
+        if (amount > 0 && expiresAt > System.currentTimeMillis()) {
+            Loan loan = borrowed.computeIfAbsent(peer, k -> new Loan());
+            loan.units += amount;
+            loan.expiresAt = Math.max(loan.expiresAt, expiresAt);
+            notifyAll();
+        }
+    }
+
+    // Decide which loans to renew now: each loan close to expiring keeps the units our connections still need,
+    // those due to expire last kept first. Our own count drops to what we keep before the renewals are sent, so
+    // it never exceeds the lender's. Returns lender address -> units to keep.
+    public synchronized Map<String, Integer> takeRenewals() {
+        long now = System.currentTimeMillis();
+        capacity();  // Drops expired loans first
+        int lentUnits = 0;
+        for (Loan loan : lent.values()) {
+            lentUnits += loan.units;
+        }
+        int needed = Math.max(0, used - (baseShare - heldBack - lentUnits));  // Units in use that only loans cover
+
+        List<Map.Entry<String, Loan>> loans = new ArrayList<>(borrowed.entrySet());
+        loans.sort((a, b) -> Long.compare(b.getValue().expiresAt, a.getValue().expiresAt));
+        Map<String, Integer> renewals = new HashMap<>();
+        for (Map.Entry<String, Loan> entry : loans) {
+            Loan loan = entry.getValue();
+            int keep = Math.min(loan.units, needed);
+            needed -= keep;
+            if (loan.expiresAt - now <= RENEW_MARGIN_MS && !pendingRequests.containsKey(entry.getKey())) {
+                loan.units = keep;
+                renewals.put(entry.getKey(), keep);
+            }
+        }
+        borrowed.values().removeIf(loan -> loan.units == 0);
+        return renewals;
+    }
+
+    // The lender renewed our loan at some point after requestedAt and now lends us kept units
+    public synchronized void renewed(String peer, int kept, long requestedAt) {
+        Loan loan = borrowed.get(peer);
+        if (loan == null) {
+            return;
+        }
+        loan.units = Math.min(loan.units, kept);
+        loan.expiresAt = Math.max(loan.expiresAt, requestedAt + LOAN_TTL_MS);
+        if (loan.units == 0) {
+            borrowed.remove(peer);
+        }
+    }
+
+    // Connections held above our capacity, or -1 if our share was computed from a different number of brokers
+    public synchronized int excess(int members) {
+        if (members != memberCount) {
+            return -1;
+        }
+        return Math.max(0, used - capacity());
+    }
+
+    public synchronized int getHeldBack() {
+        return heldBack;
+    }
+
+    public synchronized int getMemberCount() {
+        return memberCount;
+    }
+
+    // The other brokers together still hold peerExcess connections above their shares; keep that much back
+    public synchronized void releaseHeldBack(int peerExcess) {
+        if (peerExcess < heldBack) {
+            heldBack = peerExcess;
+            System.out.println("Quota for " + kind + "s: " + heldBack + " units still held back, capacity " + capacity());
+            notifyAll();
+        }
+    }
+
+    // Recompute our share from the cluster membership; every broker derives the same split from the same map
+    public synchronized void rebalance(List<String> sortedMembers, String ownAddress) {
+        int index = sortedMembers.indexOf(ownAddress);
+        int share;
+        if (index < 0) {
+            share = 0;
+        } else {
+            int brokers = sortedMembers.size();
+            share = totalLimit / brokers + (index < totalLimit % brokers ? 1 : 0);
+        }
+        // Units that move to us may still be in use on the brokers that had them
+        if (sortedMembers.size() <= 1) {
+            heldBack = 0;
+        } else if (share > baseShare) {
+            heldBack = Math.min(share, heldBack + share - baseShare);
+        } else {
+            heldBack = Math.min(share, heldBack);
+        }
+        baseShare = share;
+        memberCount = sortedMembers.size();
+        borrowed.keySet().retainAll(sortedMembers);
+        lent.keySet().retainAll(sortedMembers);
+        System.out.println("Quota for " + kind + "s: share " + baseShare + " (" + heldBack + " held back), capacity "
+                + capacity() + ", used " + used);
+        notifyAll();
+    }
+
+    private int capacity() {
+        long now = System.currentTimeMillis();
+        borrowed.values().removeIf(loan -> loan.expiresAt <= now);
+        lent.values().removeIf(loan -> loan.expiresAt <= now);
+        int capacity = baseShare - heldBack;
+        for (Loan loan : borrowed.values()) {
+            capacity += loan.units;
+        }
+        for (Loan loan : lent.values()) {
+            capacity -= loan.units;
+        }
+        return capacity;
+    }
+}
@@ -0,0 +1,32 @@
+/**
+ * Name: Simon Chen
+ * Surname: Chen
+ * Student ID: 1196439
+ *
+ * Description: The SlowConsumerPolicy enum lists what a connection's OutboundWriter does with a published
+ * message when the client has fallen so far behind that its delivery queue is full. It is chosen for the whole
+ * broker with -Dbroker.slowConsumerPolicy.
+ *
+ * Date: 17/10/2026
+ */
+package com.example.broker;
+
+public enum SlowConsumerPolicy {
+    BLOCK,        // Make a local publisher wait for space, up to the grace period, before publishing; a message that still does not fit closes the connection
+    DROP_NEWEST,  // Drop the message being published
+    DROP_OLDEST,  // Drop the oldest queued message to make room for the new one
+    DISCONNECT;   // Drop the message, and close the connection once it has stayed above the high watermark for the grace period
+
+    public static SlowConsumerPolicy fromProperty(String property, SlowConsumerPolicy defaultPolicy) {
+        String value = System.getProperty(property);
+        if (value == null) {
+            return defaultPolicy;
+        }
+        try {
+            return valueOf(value.trim().toUpperCase().replace('-', '_'));
+        } catch (IllegalArgumentException e) {
+            System.err.println("Unknown " + property + " '" + value + "', using " + defaultPolicy + ".");
+            return defaultPolicy;
+        }
+    }
+}
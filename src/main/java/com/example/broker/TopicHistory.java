@@ -0,0 +1,88 @@
+/**
+ * Name: Simon Chen
+ * Surname: Chen
+ * Student ID: 1196439
+ *
+ * Description: The TopicHistory class keeps the most recent messages this broker delivered for a topic in a
+ * bounded ring, numbered with increasing sequence numbers, so a subscriber that reconnects can be sent what it
+ * missed. Its monitor is also the topic's delivery lock: publishing and resuming both hold it, so a resumed
+ * subscriber gets every message exactly once, whichever way it reaches it. The broker a message is published
+ * at numbers it and forwards the number along, so every broker gives a message the same sequence number and a
+ * subscriber can resume at another broker after a failover.
+ *
+ * Date: 17/10/2026
+ */
+package com.example.broker;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class TopicHistory {
+    private static final int CAPACITY = Integer.getInteger("broker.historySize", 1024);
+
+    private byte[][] ring;        // Encoded delivery lines; allocated on first use and dropped when the history lapses
+    private long nextSeq;         // Sequence number of the next message
+    private long oldestSeq;       // Oldest sequence number still in the ring
+    private long lapsedAtSeq = -1;  // Messages up to here may never have reached this broker
+    private long idleSince;       // When the topic's last local subscriber left, or 0 while it has some
+
+    // Record a delivered line and return its sequence number
+    public synchronized long append(byte[] line) {
+        if (ring == null) {
+            ring = new byte[CAPACITY][];
+        }
+        ring[(int) (nextSeq % CAPACITY)] = line;
+        if (nextSeq - oldestSeq == CAPACITY) {
+            oldestSeq++;  // The ring is full; the oldest message is overwritten
+        }
+        return nextSeq++;
+    }
+
+    public synchronized long getNextSeq() {
+        return nextSeq;
+    }
+
+    // Skip ahead to seq, the number another broker gave its next message; the messages in between never reached
+    // this broker, so they cannot be replayed
+    public synchronized void advanceTo(long seq) {
+        if (seq > nextSeq) {
+            nextSeq = seq;
+            oldestSeq = seq;
+        }
+    }
+
+    // The messages from fromSeq up to now that are still in the ring
+    public synchronized List<byte[]> since(long fromSeq) {
+        List<byte[]> lines = new ArrayList<>();
+        for (long seq = Math.max(fromSeq, oldestSeq); seq < nextSeq; seq++) {
+            lines.add(ring[(int) (seq % CAPACITY)]);
+        }
+        return lines;
+    }
+
+    // First sequence number since(fromSeq) returns, or the next one if there is nothing to replay
+    public synchronized long firstAvailable(long fromSeq) {
+        return Math.min(Math.max(fromSeq, oldestSeq), nextSeq);
+    }
+
+    // True if every message from fromSeq on is still here
+    public synchronized boolean covers(long fromSeq) {
+        return fromSeq > lapsedAtSeq && fromSeq >= oldestSeq && fromSeq <= nextSeq;
+    }
+
+    public synchronized void setIdle(boolean idle) {
+        idleSince = idle ? System.currentTimeMillis() : 0;
+    }
+
+    // True while the history should be kept up to date, i.e. the topic has had local subscribers recently
+    public synchronized boolean isRetained(long windowMs) {
+        return ring != null && (idleSince == 0 || System.currentTimeMillis() - idleSince < windowMs);
+    }
+
+    // Stop keeping messages; the sequence carries on, but nothing up to here can be replayed any more
+    public synchronized void lapse() {
+        ring = null;
+        oldestSeq = nextSeq;
+        lapsedAtSeq = nextSeq;
+    }
+}
@@ -0,0 +1,323 @@
+/**
+ * Name: Simon Chen
+ * Surname: Chen
+ * Student ID: 1196439
+ *
+ * Description: The TopicLog class is an append-only history of one topic's delivered messages, kept on disk in
+ * segments. Each record is one delivery line ending in '\n', exactly as it is sent to subscribers, so a range of
+ * records can be sent to a socket straight from the file. Appends go into a memory-mapped segment whose mapping
+ * starts small and doubles as the records need room, so a quiet topic costs little; a sparse index of
+ * (offset, position) pairs, one per few KB, finds the position of an offset with a short scan. A segment that is
+ * full is trimmed to its data and a new one is started at the next offset. Flushing forces the unflushed range of each
+ * mapping to disk without holding the log's lock, so appends carry on meanwhile. Deleting the log closes its files and drops its
+ * mappings, which Java releases once they are no longer reachable.
+ *
+ * Date: 17/10/2026
+ */
+package com.example.broker;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+public class TopicLog {
+    private static final int SEGMENT_BYTES = Integer.getInteger("broker.logSegmentBytes", 64 * 1024 * 1024);
+    private static final int INITIAL_MAP_BYTES = Math.min(SEGMENT_BYTES, 64 * 1024);  // First mapping of a new segment
+    private static final int INDEX_INTERVAL_BYTES = 4096;  // One index entry per this many bytes of records
+    private static final String LOG_SUFFIX = ".log";
+    private static final String INDEX_SUFFIX = ".index";
+
+    private final Path directory;
+    private final List<Segment> segments = new ArrayList<>();  // Oldest first; the last one takes the appends
+    private long nextOffset;
+
+    // Open the log in the given directory, recovering any segments a previous run left there
+    public TopicLog(Path directory) throws IOException {
+        this.directory = directory;
+        Files.createDirectories(directory);
+
+        List<Long> baseOffsets = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*" + LOG_SUFFIX)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                baseOffsets.add(Long.parseLong(name.substring(0, name.length() - LOG_SUFFIX.length())));
+            }
+        }
+        Collections.sort(baseOffsets);
+        for (int i = 0; i < baseOffsets.size(); i++) {
+            segments.add(new Segment(directory, baseOffsets.get(i), i == baseOffsets.size() - 1));
+        }
+        if (segments.isEmpty()) {
+            segments.add(new Segment(directory, 0, true));
+        }
+        nextOffset = activeSegment().endOffset;
+    }
+
+    // Append one record (a delivery line ending in '\n') and return its offset
+    public synchronized long append(byte[] record) throws IOException {
+        if (segments.isEmpty()) {
+            throw new IOException("Log has been closed");
+        }
+        if (record.length > SEGMENT_BYTES) {
+            throw new IOException("Record of " + record.length + " bytes does not fit in a log segment");
+        }
+        if (!activeSegment().append(record)) {
+            activeSegment().seal();
+            segments.add(new Segment(directory, nextOffset, true));
+            activeSegment().append(record);
+        }
+        return nextOffset++;
+    }
+
+    // Offset the next appended record will get
+    public synchronized long getEndOffset() {
+        return nextOffset;
+    }
+
+    // Add the file ranges holding every record from fromOffset to the current end, ready to be sent with
+    // transferTo, and return the offset that follows the last of them
+    public synchronized long read(long fromOffset, List<FileRegion> regions) {
+        for (Segment segment : segments) {
+            if (segment.endOffset <= fromOffset) {
+                continue;
+            }
+            int position = fromOffset > segment.baseOffset ? segment.positionOf(fromOffset) : 0;
+            if (segment.size > position) {
+                regions.add(new FileRegion(segment.channel, position, segment.size - position));
+            }
+        }
+        return nextOffset;
+    }
+
+    // Push appended records from the page cache to disk. Only picking the segments to force takes the lock; the
+    // force itself runs without it, so appends are never held up by the disk.
+    public void flush() throws IOException {
+        List<Segment> unflushed = new ArrayList<>();
+        List<MappedByteBuffer> buffers = new ArrayList<>();
+        List<Integer> froms = new ArrayList<>();
+        List<Integer> sizes = new ArrayList<>();
+        synchronized (this) {
+            for (Segment segment : segments) {
+                if (segment.size > segment.flushedSize) {
+                    unflushed.add(segment);
+                    buffers.add(segment.buffer);
+                    froms.add(segment.flushedSize);
+                    sizes.add(segment.size);
+                }
+            }
+        }
+        for (int i = 0; i < unflushed.size(); i++) {
+            Segment segment = unflushed.get(i);
+            try {
+                // Records are written through the mapping, which only the mapping's own force is sure to write
+                buffers.get(i).force(froms.get(i), sizes.get(i) - froms.get(i));
+                segment.indexChannel.force(false);
+            } catch (ClosedChannelException e) {
+                continue;  // Closed or deleted meanwhile
+            }
+            synchronized (this) {
+                segment.flushedSize = Math.max(segment.flushedSize, sizes.get(i));
+            }
+        }
+    }
+
+    public synchronized void close() {
+        for (Segment segment : segments) {
+            segment.close();
+        }
+        segments.clear();
+    }
+
+    // Close the log and remove its files, e.g. once the topic has been deleted
+    public synchronized void delete() throws IOException {
+        for (Segment segment : segments) {
+            segment.release();
+            Files.deleteIfExists(segment.logPath);
+            Files.deleteIfExists(segment.indexPath);
+        }
+        segments.clear();
+        Files.deleteIfExists(directory);
+    }
+
+    private Segment activeSegment() {
+        return segments.get(segments.size() - 1);
+    }
+
+    private static class Segment {
+        final long baseOffset;
+        final Path logPath;
+        final Path indexPath;
+        final FileChannel channel;
+        final FileChannel indexChannel;
+        MappedByteBuffer buffer;  // Read-write while the segment takes appends, read-only once sealed; null once released
+        int size;        // Bytes of complete records
+        long endOffset;  // Offset of the next record written to this segment
+        int flushedSize;
+        int[] indexOffsets = new int[16];    // Offsets relative to baseOffset
+        int[] indexPositions = new int[16];  // Position of the record with that offset
+        int indexEntries;
+
+        Segment(Path directory, long baseOffset, boolean active) throws IOException {
+            this.baseOffset = baseOffset;
+            String name = String.format("%020d", baseOffset);
+            this.logPath = directory.resolve(name + LOG_SUFFIX);
+            this.indexPath = directory.resolve(name + INDEX_SUFFIX);
+            this.channel = FileChannel.open(logPath, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            this.indexChannel = FileChannel.open(indexPath, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+
+            long fileSize = channel.size();
+            if (active) {
+                // Appends are plain memory copies into the mapping, which grows when they reach its end
+                this.buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, Math.max(INITIAL_MAP_BYTES, fileSize));
+            } else {
+                this.buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, fileSize);
+            }
+            loadIndex();
+            recover(active ? buffer.capacity() : (int) fileSize);
+            this.flushedSize = size;
+        }
+
+        private void loadIndex() throws IOException {
+            ByteBuffer entries = ByteBuffer.allocate((int) (indexChannel.size() / 8 * 8));
+            while (entries.hasRemaining()) {
+                if (indexChannel.read(entries, entries.position()) < 0) {
+                    break;
+                }
+            }
+            entries.flip();
+            while (entries.remaining() >= 8) {
+                addIndexEntry(entries.getInt(), entries.getInt());
+            }
+        }
+
+        // Find the end of the last complete record after the last index entry; a torn tail is zeroed. Messages may
+        // contain NUL bytes, so only the zeros after the last non-zero byte are taken as the unused rest of the
+        // mapping; records are counted by their '\n' up to there.
+        private void recover(int limit) {
+            int position = indexEntries > 0 ? indexPositions[indexEntries - 1] : 0;
+            long offset = baseOffset + (indexEntries > 0 ? indexOffsets[indexEntries - 1] : 0);
+            int end = limit;
+            while (end > position && buffer.get(end - 1) == 0) {
+                end--;
+            }
+            int recordEnd = position;
+            for (; position < end; position++) {
+                if (buffer.get(position) == '\n') {
+                    offset++;
+                    recordEnd = position + 1;
+                }
+            }
+            if (!buffer.isReadOnly()) {
+                for (int i = recordEnd; i < end; i++) {
+                    buffer.put(i, (byte) 0);
+                }
+            }
+            size = recordEnd;
+            endOffset = offset;
+        }
+
+        // Returns false if the record does not fit in this segment
+        boolean append(byte[] record) throws IOException {
+            if (buffer.isReadOnly() || size + record.length > Math.max(SEGMENT_BYTES, buffer.capacity())) {
+                return false;
+            }
+            if (size + record.length > buffer.capacity()) {
+                // Double the mapping, which also extends the file; the old mapping is released once unreachable
+                int capacity = Math.max(size + record.length, (int) Math.min(SEGMENT_BYTES, buffer.capacity() * 2L));
+                buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+            }
+            int lastIndexed = indexEntries > 0 ? indexPositions[indexEntries - 1] : 0;
+            if (size - lastIndexed >= INDEX_INTERVAL_BYTES) {
+                writeIndexEntry((int) (endOffset - baseOffset), size);
+            }
+            buffer.put(size, record);
+            size += record.length;
+            endOffset++;
+            return true;
+        }
+
+        // Position of the record with the given offset: jump to the closest index entry, then count lines
+        int positionOf(long offset) {
+            int relative = (int) (offset - baseOffset);
+            int entry = Arrays.binarySearch(indexOffsets, 0, indexEntries, relative);
+            if (entry < 0) {
+                entry = -entry - 2;  // Closest entry below the offset
+            }
+            int position = entry >= 0 ? indexPositions[entry] : 0;
+            int current = entry >= 0 ? indexOffsets[entry] : 0;
+            while (current < relative && position < size) {
+                if (buffer.get(position) == '\n') {
+                    current++;
+                }
+                position++;
+            }
+            return position;
+        }
+
+        // Stop appending: write out the records, trim the file to them and keep a read-only mapping for lookups.
+        // A read-only mapping cannot be forced, so this force is the last chance for the records it covers.
+        void seal() throws IOException {
+            forceUnflushed();
+            channel.truncate(size);
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+        }
+
+        private void writeIndexEntry(int relativeOffset, int position) throws IOException {
+            ByteBuffer entry = ByteBuffer.allocate(8);
+            entry.putInt(relativeOffset).putInt(position).flip();
+            indexChannel.write(entry, (long) indexEntries * 8);
+            addIndexEntry(relativeOffset, position);
+        }
+
+        private void addIndexEntry(int relativeOffset, int position) {
+            if (indexEntries == indexOffsets.length) {
+                indexOffsets = Arrays.copyOf(indexOffsets, indexEntries * 2);
+                indexPositions = Arrays.copyOf(indexPositions, indexEntries * 2);
+            }
+            indexOffsets[indexEntries] = relativeOffset;
+            indexPositions[indexEntries] = position;
+            indexEntries++;
+        }
+
+        // Write the records appended since the last flush, and the index entries for them
+        private void forceUnflushed() throws IOException {
+            if (size > flushedSize && buffer != null) {
+                if (!buffer.isReadOnly()) {
+                    buffer.force(flushedSize, size - flushedSize);
+                }
+                indexChannel.force(false);
+                flushedSize = size;
+            }
+        }
+
+        void close() {
+            try {
+                forceUnflushed();
+            } catch (IOException e) {
+                System.err.println("Error flushing log segment " + logPath + ": " + e.getMessage());
+            }
+            release();
+        }
+
+        // Close the files and drop the mapping, without flushing
+        void release() {
+            buffer = null;
+            try {
+                channel.close();
+                indexChannel.close();
+            } catch (IOException e) {
+                System.err.println("Error closing log segment " + logPath + ": " + e.getMessage());
+            }
+        }
+    }
+}
@@ -0,0 +1,276 @@
+/**
+ * Name: Simon Chen
+ * Surname: Chen
+ * Student ID: 1196439
+ *
+ * Description: The BrokerConnection class is the client side of a connection to the broker mesh, shared by
+ * publishers and subscribers. It picks a live broker from the directory service itself, performs the handshake
+ * and hands every line the broker sends to a listener. When the broker goes away it fails over to another one
+ * with a short jittered backoff, and lets the listener restore the client's state (its subscriptions or its
+ * topics) on the new broker before anything else is sent. Brokers are tried least loaded first, as ranked by
+ * the directory, and a broker that is much busier than a peer may redirect the handshake there.
+ *
+ * Date: 17/10/2026
+ */
+package com.example.client;
+
+import com.example.directory.DirectoryServiceClient;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+
+public class BrokerConnection {
+    private static final int CONNECT_TIMEOUT_MS = Integer.getInteger("client.connectTimeoutMs", 500);
+    private static final long INITIAL_BACKOFF_MS = 50;
+    private static final long MAX_BACKOFF_MS = 2000;
+    private static final long SEND_WAIT_MS = Long.getLong("client.reconnectWaitMs", 10000);  // How long a send waits for a failover
+    private static final int MAX_REDIRECTS = 2;  // Handshake redirects followed before taking any broker that accepts
+
+    public interface Listener {
+        // A line from the broker, in the order it arrived
+        void onLine(String line);
+
+        // Called on every (re)connection after the handshake and before any queued sends go out, so the
+        // client can resend whatever the new broker needs to know about it
+        void onConnected(String brokerAddress, BrokerConnection connection);
+
+        // The connection to brokerAddress was lost; a failover follows unless the connection was closed.
+        // Called under the write lock, so no send can slip in between the loss and this call.
+        void onDisconnected(String brokerAddress);
+    }
+
+    private final String username;
+    private final String connectionType;
+    private final DirectoryServiceClient directoryServiceClient;
+    private final Listener listener;
+    private final Object writeLock = new Object();
+    private Socket socket;        // Guarded by writeLock
+    private PrintWriter out;      // Guarded by writeLock; null while failing over
+    private String brokerAddress;
+    private volatile boolean closed;
+
+    public BrokerConnection(String username, String connectionType, DirectoryServiceClient directoryServiceClient, Listener listener) {
+        this.username = username;
+        this.connectionType = connectionType;
+        this.directoryServiceClient = directoryServiceClient;
+        this.listener = listener;
+    }
+
+    // Connect to preferredBroker if it is given and reachable, otherwise to any live broker, and start reading
+    public void connect(String preferredBroker) throws IOException {
+        BufferedReader in = connectToAnyBroker(preferredBroker, null);
+        if (in == null) {
+            throw new IOException("No broker accepted the connection.");
+        }
+        // Not a daemon: like an open socket, the connection keeps the client running until it is closed
+        new Thread(() -> readLoop(in), connectionType + "-connection").start();
+    }
+
+    // Send one or more lines; while failing over this waits for the new connection instead of failing at once
+    public void send(String line) throws IOException {
+        send(line, null);
+    }
+
+    // As send(line), running beforeWrite (if not null) under the write lock once the line is certain to go to
+    // the current broker, e.g. to record a request that must be failed if that broker is lost
+    public void send(String line, Runnable beforeWrite) throws IOException {
+        long deadline = System.currentTimeMillis() + SEND_WAIT_MS;
+        synchronized (writeLock) {
+            while (out == null && !closed) {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    throw new IOException("No broker connection.");
+                }
+                try {
+                    writeLock.wait(remaining);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted while waiting for a broker connection.");
+                }
+            }
+            if (closed) {
+                throw new IOException("Connection closed.");
+            }
+            if (beforeWrite != null) {
+                beforeWrite.run();
+            }
+            out.println(line);
+            if (out.checkError()) {
+                throw new IOException("Error writing to broker " + brokerAddress + ".");
+            }
+        }
+    }
+
+    public String getBrokerAddress() {
+        synchronized (writeLock) {
+            return brokerAddress;
+        }
+    }
+
+    public void close() {
+        closed = true;
+        synchronized (writeLock) {
+            closeSocket();
+            writeLock.notifyAll();
+        }
+    }
+
+    private void readLoop(BufferedReader in) {
+        while (!closed) {
+            String lostBroker = getBrokerAddress();
+            try {
+                String line;
+                while ((line = in.readLine()) != null) {
+                    listener.onLine(line);
+                }
+            } catch (IOException e) {
+                // Handled the same as a clean close by the broker
+            }
+            if (closed) {
+                return;
+            }
+
+            System.out.println("Connection to broker " + lostBroker + " lost, failing over.");
+            synchronized (writeLock) {
+                closeSocket();
+                listener.onDisconnected(lostBroker);
+            }
+            in = reconnect(lostBroker);
+            if (in == null) {
+                return;
+            }
+        }
+    }
+
+    // Retry with jittered exponential backoff until some broker takes the connection; the first attempt is immediate
+    private BufferedReader reconnect(String lostBroker) {
+        long backoff = INITIAL_BACKOFF_MS;
+        boolean firstAttempt = true;
+        while (!closed) {
+            if (!firstAttempt) {
+                try {
+                    // Jitter spreads the clients of a crashed broker over time instead of all retrying together
+                    Thread.sleep(backoff / 2 + ThreadLocalRandom.current().nextLong(backoff / 2 + 1));
+                } catch (InterruptedException e) {
+                    return null;
+                }
+                backoff = Math.min(backoff * 2, MAX_BACKOFF_MS);
+            }
+            firstAttempt = false;
+            try {
+                BufferedReader in = connectToAnyBroker(null, lostBroker);
+                if (in != null) {
+                    return in;
+                }
+            } catch (IOException e) {
+                System.out.println("Reconnect attempt failed: " + e.getMessage());
+            }
+        }
+        return null;
+    }
+
+    // Try the preferred broker, then the live brokers least loaded first, with the one just lost last.
+    // Returns the reader of the new connection, or null if none accepted.
+    private BufferedReader connectToAnyBroker(String preferredBroker, String lostBroker) throws IOException {
+        List<String> candidates = new ArrayList<>(directoryServiceClient.getActiveBrokers());
+        // The ranking is only as fresh as the last load reports, so pick at random between the two least loaded
+        // brokers; otherwise every client failing over at once would pile onto the same one
+        if (candidates.size() > 1 && ThreadLocalRandom.current().nextBoolean()) {
+            Collections.swap(candidates, 0, 1);
+        }
+        if (lostBroker != null && candidates.remove(lostBroker)) {
+            candidates.add(lostBroker);
+        }
+        if (preferredBroker != null) {
+            candidates.remove(preferredBroker);
+            candidates.add(0, preferredBroker);
+        }
+
+        Set<String> tried = new HashSet<>();
+        for (String candidate : candidates) {
+            String target = candidate;
+            int redirects = 0;
+            while (target != null && tried.add(target)) {
+                boolean allowRedirect = redirects++ < MAX_REDIRECTS;
+                String[] outcome = new String[1];
+                BufferedReader in = tryBroker(target, allowRedirect, outcome);
+                if (in != null) {
+                    return in;
+                }
+                target = outcome[0];  // The broker it redirected to, if any
+            }
+        }
+        return null;
+    }
+
+    // Handshake with candidate; if it redirects elsewhere, the address is left in redirectedTo[0]
+    private BufferedReader tryBroker(String candidate, boolean allowRedirect, String[] redirectedTo) {
+        String[] parts = candidate.split(":");
+        Socket candidateSocket = new Socket();
+        try {
+            // A bounded connect, so a broker that died without closing its port cannot hold up the failover
+            candidateSocket.connect(new InetSocketAddress(parts[0], Integer.parseInt(parts[1])), CONNECT_TIMEOUT_MS);
+            candidateSocket.setSoTimeout(CONNECT_TIMEOUT_MS * 4);  // Only while waiting for the handshake reply
+            PrintWriter candidateOut = new PrintWriter(new OutputStreamWriter(candidateSocket.getOutputStream(), StandardCharsets.UTF_8), true);
+            BufferedReader in = new BufferedReader(new InputStreamReader(candidateSocket.getInputStream(), StandardCharsets.UTF_8));
+
+            candidateOut.println("HANDSHAKE_INIT " + username + " " + connectionType + (allowRedirect ? " redirect" : ""));
+            String ack = in.readLine();
+            if (ack != null && ack.startsWith("HANDSHAKE_REDIRECT ")) {
+                redirectedTo[0] = ack.substring("HANDSHAKE_REDIRECT ".length()).trim();
+                System.out.println("Broker " + candidate + " is busy, redirected to " + redirectedTo[0]);
+                candidateSocket.close();
+                return null;
+            }
+            if (!"HANDSHAKE_ACK".equals(ack)) {
+                System.out.println("Broker " + candidate + " refused the connection: " + ack);
+                candidateSocket.close();
+                return null;
+            }
+            candidateSocket.setSoTimeout(0);
+
+            synchronized (writeLock) {
+                socket = candidateSocket;
+                brokerAddress = candidate;
+                out = candidateOut;
+                System.out.println("Connected to broker at " + candidate);
+                // Restore the client's state first; sends waiting for the failover are released afterwards
+                listener.onConnected(candidate, this);
+                writeLock.notifyAll();
+            }
+            return in;
+        } catch (IOException | RuntimeException e) {
+            System.out.println("Could not connect to broker " + candidate + ": " + e.getMessage());
+            try {
+                candidateSocket.close();
+            } catch (IOException closeError) {
+                // Already failed
+            }
+            return null;
+        }
+    }
+
+    // Caller holds writeLock
+    private void closeSocket() {
+        out = null;
+        if (socket != null) {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // Nothing left to do with it
+            }
+        }
+    }
+}
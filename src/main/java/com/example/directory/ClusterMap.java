@@ -0,0 +1,102 @@
+/**
+ * Name: Simon Chen
+ * Surname: Chen
+ * Student ID: 1196439
+ *
+ * Description: The ClusterMap class is a broker-local, versioned copy of the directory service's membership.
+ * It is filled from the snapshot and deltas pushed over a watch connection, so brokers can read the active
+ * broker set without contacting the directory. Listeners are told about every broker that joins or leaves.
+ *
+ * Date: 17/10/2026
+ */
+package com.example.directory;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+public class ClusterMap {
+
+    // Notified on the watch thread; implementations should hand slow work off to another thread
+    public interface Listener {
+        // joinedNow is true for a broker that joined after our snapshot, false for one that was already a member
+        void onBrokerAdded(String brokerAddress, boolean joinedNow);
+
+        void onBrokerRemoved(String brokerAddress);
+    }
+
+    private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+    private volatile Set<String> brokers = Collections.emptySet();  // Immutable snapshot, replaced on change
+    private volatile long version = -1;  // -1 until the first snapshot arrives
+
+    public void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+
+    public Set<String> getBrokers() {
+        return brokers;
+    }
+
+    public long getVersion() {
+        return version;
+    }
+
+    // Replace the whole map, e.g. after (re)connecting to the directory
+    public void applySnapshot(long newVersion, Set<String> members) {
+        Set<String> added = new HashSet<>();
+        Set<String> removed;
+        synchronized (this) {
+            Set<String> previous = brokers;
+            removed = new HashSet<>(previous);
+            removed.removeAll(members);
+            for (String member : members) {
+                if (!previous.contains(member)) {
+                    added.add(member);
+                }
+            }
+            brokers = Collections.unmodifiableSet(new HashSet<>(members));
+            version = newVersion;
+        }
+        System.out.println("Cluster map at version " + newVersion + ": " + members);
+        notifyListeners(added, removed, false);
+    }
+
+    // Apply a single delta; returns false if versions were skipped and a fresh snapshot is needed
+    public boolean applyDelta(long deltaVersion, String brokerAddress, boolean joined) {
+        synchronized (this) {
+            if (deltaVersion <= version) {
+                return true;  // Already reflected in the map
+            }
+            if (deltaVersion != version + 1) {
+                return false;
+            }
+            Set<String> next = new HashSet<>(brokers);
+            boolean changed = joined ? next.add(brokerAddress) : next.remove(brokerAddress);
+            brokers = Collections.unmodifiableSet(next);
+            version = deltaVersion;
+            if (!changed) {
+                return true;
+            }
+        }
+        System.out.println("Cluster map at version " + deltaVersion + ": " + (joined ? "+" : "-") + brokerAddress);
+        if (joined) {
+            notifyListeners(Collections.singleton(brokerAddress), Collections.<String>emptySet(), true);
+        } else {
+            notifyListeners(Collections.<String>emptySet(), Collections.singleton(brokerAddress), true);
+        }
+        return true;
+    }
+
+    private void notifyListeners(Set<String> added, Set<String> removed, boolean joinedNow) {
+        for (Listener listener : listeners) {
+            for (String brokerAddress : added) {
+                listener.onBrokerAdded(brokerAddress, joinedNow);
+            }
+            for (String brokerAddress : removed) {
+                listener.onBrokerRemoved(brokerAddress);
+            }
+        }
+    }
+}
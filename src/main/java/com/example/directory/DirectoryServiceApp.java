@@ -5,24 +5,52 @@
  *
  * Description: The DirectoryServiceApp class serves as the main entry point for the directory service application. 
  * It listens for broker registration and deregistration requests on a specified port and keeps track of active 
- * brokers in the system.
+ * brokers in the system. Brokers also report their load, and get_brokers lists the least loaded brokers first.
+ * Every connection is served on its own virtual thread and may stay open for any number of pipelined requests,
+ * so a slow or stuck peer only holds up itself. get_brokers is answered from a reply built in advance, which is
+ * rebuilt only when the membership or the load ranking changes. A registration is a lease: brokers renew it with
+ * heartbeats, and one that stops renewing is evicted once its lease expires. Membership changes are queued for
+ * each watching connection and written by that connection's own thread, so a watcher that stops reading never
+ * holds up registrations, heartbeats or evictions; one that falls too far behind is dropped and resynchronizes.
  * 
  * Date: 11/10/2024
  */
 
 package com.example.directory;
 
+import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
+import java.io.IOException;
 import java.io.InputStreamReader;
-import java.io.PrintWriter;
+import java.io.OutputStream;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 public class DirectoryServiceApp {
-    
+    private static final long LEASE_TTL_MS = Long.getLong("directory.leaseTtlMs", 3000);  // Brokers heartbeat well within this
+    private static final int WATCHER_QUEUE_CAPACITY = Integer.getInteger("directory.watcherQueueCapacity", 1024);
+
     private final Set<String> activeBrokers = ConcurrentHashMap.newKeySet();
+    private final CopyOnWriteArrayList<Watcher> watchers = new CopyOnWriteArrayList<>(); // Persistent watch connections
+    private long membershipVersion = 0;  // Bumped on every membership change, guarded by this
+    private final Map<String, Double> brokerLoads = new ConcurrentHashMap<>();  // Broker address -> last reported load score
+    private volatile List<String> rankedBrokers = List.of();  // Immutable, rebuilt under this
+    private volatile String brokerListReply = "END\n";  // The whole get_brokers reply for rankedBrokers
+    private final Map<String, Long> leaseExpiries = new ConcurrentHashMap<>();  // Broker address -> when its lease runs out
 
     public static void main(String[] args) {
         if (args.length < 1) {
@@ -41,35 +69,83 @@ public class DirectoryServiceApp {
         }
     }
 
+    // The outgoing side of a watching connection. Lines are queued without blocking and written by the watcher's
+    // own thread, which flushes whenever the queue runs empty.
+    private static final class Watcher implements Runnable {
+        private static final String CLOSE_MARKER = new String("CLOSE");  // Identity-compared, never sent
+
+        private final Socket socket;
+        private final OutputStream out;
+        private final BlockingQueue<String> queue = new LinkedBlockingQueue<>(WATCHER_QUEUE_CAPACITY);
+        private volatile boolean closed;
+
+        Watcher(Socket socket, OutputStream out) {
+            this.socket = socket;
+            this.out = out;
+        }
+
+        // Queue one or more lines; a watcher whose queue is full has stopped reading and is closed, so it
+        // resynchronizes from a snapshot once it reconnects
+        boolean send(String lines) {
+            if (closed) {
+                return false;
+            }
+            if (!queue.offer(lines)) {
+                System.out.println("Membership watcher " + socket.getRemoteSocketAddress() + " fell behind, closing it.");
+                close();
+                return false;
+            }
+            return true;
+        }
+
+        void close() {
+            closed = true;
+            queue.clear();
+            queue.offer(CLOSE_MARKER);
+            try {
+                socket.close();  // Also ends a write stuck on the socket
+            } catch (IOException e) {
+                // Already closed
+            }
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (true) {
+                    String lines = queue.take();
+                    if (lines == CLOSE_MARKER) {
+                        break;
+                    }
+                    out.write(lines.getBytes(StandardCharsets.UTF_8));
+                    if (queue.isEmpty()) {
+                        out.flush();
+                    }
+                }
+            } catch (IOException e) {
+                // The watching broker has gone away
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                close();
+            }
+        }
+    }
+
     public void start(int port) {
-        try (ServerSocket serverSocket = new ServerSocket(port)) {
+        try (ServerSocket serverSocket = new ServerSocket(port);
+             ExecutorService connectionPool = Executors.newVirtualThreadPerTaskExecutor()) {
             System.out.println("Directory Service started on port: " + port);
 
+            ScheduledExecutorService leaseReaper = Executors.newSingleThreadScheduledExecutor();
+            leaseReaper.scheduleWithFixedDelay(this::evictExpiredBrokers, LEASE_TTL_MS / 3, LEASE_TTL_MS / 3, TimeUnit.MILLISECONDS);
+
             while (true) {
                 try {
                     Socket clientSocket = serverSocket.accept();
-                    BufferedReader in = new BufferedReader(new InputStreamReader(clientSocket.getInputStream()));
-                    PrintWriter out = new PrintWriter(clientSocket.getOutputStream(), true);
-
-                    String request = in.readLine();
-                    if (request.startsWith("register ")) {
-                        String brokerAddress = request.substring(9); // Get the broker address after 'register '
-                        registerBroker(brokerAddress);
-                        out.println("Broker registered: " + brokerAddress);
-                    } else if ("get_brokers".equals(request)) {
-                        for (String broker : activeBrokers) {
-                            out.println(broker); // Send each broker address
-                        }
-                        out.println("END"); // End of the list
-                    } else if (request.startsWith("deregister ")) {
-                        String brokerAddress = request.substring(11); // Get the broker address after 'deregister '
-                        deregisterBroker(brokerAddress);
-                        out.println("Broker deregistered: " + brokerAddress);
-                    }
-
-                    clientSocket.close();
-                } catch (Exception e) {
-                    e.printStackTrace();
+                    connectionPool.submit(() -> handleConnection(clientSocket));
+                } catch (IOException e) {
+                    System.out.println("Error accepting connection: " + e.getMessage());
                 }
             }
         } catch (Exception e) {
@@ -77,16 +153,165 @@ public class DirectoryServiceApp {
         }
     }
 
-    public void registerBroker(String brokerAddress) {
-        activeBrokers.add(brokerAddress);
-        System.out.println("Broker registered: " + brokerAddress);
+    // Serve requests from one connection until the peer closes it. Replies go out in request order and are
+    // flushed once no further request is already waiting, so pipelined requests share a write. Once a connection
+    // watches the membership, its replies are queued behind the updates and written by its watcher. Writes go
+    // through streams that do not hold a monitor while blocked, so a peer that stops reading never pins the
+    // carrier thread its virtual thread runs on.
+    private void handleConnection(Socket clientSocket) {
+        Watcher watcher = null;
+        try (Socket socket = clientSocket;
+             BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+             OutputStream out = new BufferedOutputStream(socket.getOutputStream())) {
+
+            StringBuilder replies = new StringBuilder();  // Replies not yet written
+            String request;
+            while ((request = in.readLine()) != null) {
+                if ("watch".equals(request)) {
+                    if (watcher == null) {
+                        // Push membership changes to this connection from now on; reading on only notices the close
+                        watcher = new Watcher(socket, out);
+                        watcher.send(replies.toString());
+                        replies.setLength(0);
+                        Thread.startVirtualThread(watcher);
+                        addWatcher(watcher);
+                    }
+                } else if (request.startsWith("register ")) {
+                    String brokerAddress = request.substring(9); // Get the broker address after 'register '
+                    registerBroker(brokerAddress);
+                    replies.append("Broker registered: ").append(brokerAddress).append('\n');
+                } else if (request.startsWith("heartbeat ")) {
+                    // Renews the lease, registering the broker again if it was evicted in the meantime
+                    String brokerAddress = request.substring(10);
+                    registerBroker(brokerAddress);
+                    replies.append("Lease renewed: ").append(brokerAddress).append(' ').append(LEASE_TTL_MS).append('\n');
+                } else if (request.startsWith("load ")) {
+                    recordLoad(request.split(" "));  // No reply
+                } else if ("get_brokers".equals(request)) {
+                    replies.append(brokerListReply);  // Each broker address, then END
+                } else if (request.startsWith("deregister ")) {
+                    String brokerAddress = request.substring(11); // Get the broker address after 'deregister '
+                    deregisterBroker(brokerAddress);
+                    replies.append("Broker deregistered: ").append(brokerAddress).append('\n');
+                } else {
+                    replies.append("error: Unknown request: ").append(request).append('\n');
+                }
+
+                if (replies.length() > 0 && (watcher != null || !in.ready())) {
+                    if (watcher != null) {
+                        watcher.send(replies.toString());
+                    } else {
+                        out.write(replies.toString().getBytes(StandardCharsets.UTF_8));
+                        out.flush();
+                    }
+                    replies.setLength(0);
+                }
+            }
+        } catch (IOException e) {
+            // The peer went away mid-request
+        } finally {
+            if (watcher != null) {
+                watchers.remove(watcher);
+                watcher.close();
+            }
+        }
+    }
+
+    // Register a broker or renew its lease
+    public synchronized void registerBroker(String brokerAddress) {
+        leaseExpiries.put(brokerAddress, System.currentTimeMillis() + LEASE_TTL_MS);
+        if (activeBrokers.add(brokerAddress)) {
+            membershipVersion++;
+            rebuildBrokerList();
+            notifyWatchers("member_add " + membershipVersion + " " + brokerAddress);
+            System.out.println("Broker registered: " + brokerAddress);
+        }
     }
 
-    public void deregisterBroker(String brokerAddress) {
+    public synchronized void deregisterBroker(String brokerAddress) {
+        leaseExpiries.remove(brokerAddress);
+        brokerLoads.remove(brokerAddress);
         if (activeBrokers.remove(brokerAddress)) {
+            membershipVersion++;
+            rebuildBrokerList();
+            notifyWatchers("member_remove " + membershipVersion + " " + brokerAddress);
             System.out.println("Broker deregistered: " + brokerAddress);
         } else {
             System.out.println("Broker not found: " + brokerAddress);
         }
     }
+
+    // Drop the brokers that stopped heartbeating, e.g. because they crashed without deregistering
+    private synchronized void evictExpiredBrokers() {
+        long now = System.currentTimeMillis();
+        for (Map.Entry<String, Long> lease : leaseExpiries.entrySet()) {
+            if (lease.getValue() < now) {
+                System.out.println("Lease of broker " + lease.getKey() + " expired.");
+                deregisterBroker(lease.getKey());
+            }
+        }
+    }
+
+    // load <brokerAddress> <connections> <queueDepth> <publishRate>
+    private void recordLoad(String[] parts) {
+        if (parts.length != 5 || !activeBrokers.contains(parts[1])) {
+            return;
+        }
+        try {
+            // One point per client connection, plus one per 100 messages waiting in its queues and per 1000
+            // messages a second it fans out
+            double score = Long.parseLong(parts[2]) + Long.parseLong(parts[3]) / 100.0 + Long.parseLong(parts[4]) / 1000.0;
+            brokerLoads.put(parts[1], score);
+            rerankBrokers();
+        } catch (NumberFormatException e) {
+            System.out.println("Invalid load report: " + String.join(" ", parts));
+        }
+    }
+
+    // A load report usually leaves the order as it was, and then the current reply stands
+    private synchronized void rerankBrokers() {
+        if (!rankBrokers().equals(rankedBrokers)) {
+            rebuildBrokerList();
+        }
+    }
+
+    // Caller holds this
+    private void rebuildBrokerList() {
+        List<String> ranked = rankBrokers();
+        StringBuilder reply = new StringBuilder();
+        for (String broker : ranked) {
+            reply.append(broker).append('\n');
+        }
+        reply.append("END\n");  // End of the list
+        rankedBrokers = List.copyOf(ranked);
+        brokerListReply = reply.toString();
+    }
+
+    // Active brokers, least loaded first; a broker that has not reported yet counts as idle
+    private List<String> rankBrokers() {
+        List<String> ranked = new ArrayList<>(activeBrokers);
+        ranked.sort(Comparator.comparingDouble(broker -> brokerLoads.getOrDefault(broker, 0.0)));
+        return ranked;
+    }
+
+    // Queue the current snapshot, then keep the watcher for later deltas
+    private synchronized void addWatcher(Watcher watcher) {
+        StringBuilder snapshot = new StringBuilder("members ").append(membershipVersion);
+        for (String broker : activeBrokers) {
+            snapshot.append(" ").append(broker);
+        }
+        watcher.send(snapshot.append('\n').toString());
+        watchers.add(watcher);
+        System.out.println("Membership watcher added, " + watchers.size() + " watching.");
+    }
+
+    // Caller holds this, so updates are queued in version order; queueing never blocks, the writes happen on
+    // each watcher's own thread
+    private void notifyWatchers(String update) {
+        for (Watcher watcher : watchers) {
+            if (!watcher.send(update + "\n")) {
+                watchers.remove(watcher);
+            }
+        }
+    }
 }
@@ -5,7 +5,8 @@
  *
  * Description: The DirectoryServiceClient class allows a broker to communicate with the directory service. 
  * Brokers use this client to register themselves with the directory, retrieve a list of active brokers, and 
- * deregister when they are no longer active.
+ * deregister when they are no longer active. Requests share one persistent connection, which is reopened when
+ * it is lost.
  * 
  * Date: 11/10/2024
  */
@@ -15,45 +16,46 @@ package com.example.directory;
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
+import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Set;
 
 public class DirectoryServiceClient {
+    private static final long WATCH_RETRY_DELAY_MS = 1000;
+
+    private static final int REQUEST_TIMEOUT_MS = Integer.getInteger("directory.requestTimeoutMs", 2000);
+
     private final String directoryServiceAddress;
+    private Socket socket;      // The request connection, guarded by this; null until first used or after an error
+    private PrintWriter out;
+    private BufferedReader in;
 
     public DirectoryServiceClient(String directoryServiceAddress) {
         this.directoryServiceAddress = directoryServiceAddress;
     }
 
+    // The active brokers, least loaded first
     public Set<String> getActiveBrokers() {
-        Set<String> brokers = new HashSet<>();
+        Set<String> brokers = new LinkedHashSet<>();
         try {
-            String[] addressParts = directoryServiceAddress.split(":");
-            String dirServiceIP = addressParts[0];
-            int dirServicePort = Integer.parseInt(addressParts[1]);
-
-            Socket socket = new Socket(dirServiceIP, dirServicePort);
-            PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
-            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-
             // Send the request to get the active brokers
             System.out.println("Requesting active brokers from Directory Service...");
-            out.println("get_brokers");
+            List<String> response = request("get_brokers", "END");
 
-            // Read the response and collect brokers
-            String response;
+            // Collect the brokers
             System.out.println("Active brokers retrieved from Directory Service:");
-            while ((response = in.readLine()) != null) {
-                if ("END".equals(response)) {
-                    break;
-                }
-                brokers.add(response);
-                System.out.println(" - " + response);  // Print each broker as it is added
+            for (String broker : response) {
+                brokers.add(broker);
+                System.out.println(" - " + broker);  // Print each broker as it is added
             }
-
-            socket.close();
         } catch (IOException e) {
             System.out.println("Error retrieving active brokers from Directory Service: " + e.getMessage());
         }
@@ -63,20 +65,166 @@ public class DirectoryServiceClient {
     // Method to register a broker with the directory service
     public void registerBroker(String brokerAddress) {
         try {
-            String[] addressParts = directoryServiceAddress.split(":");
-            String dirServiceIP = addressParts[0];
-            int dirServicePort = Integer.parseInt(addressParts[1]);
+            // Send the register message with the broker's address
+            request("register " + brokerAddress, null);
+        } catch (IOException e) {
+            System.out.println("Error registering broker with Directory Service: " + e.getMessage());
+        }
+    }
 
-            Socket socket = new Socket(dirServiceIP, dirServicePort);
-            PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
+    // Renew the broker's registration lease; the directory evicts brokers that stop doing this
+    public void heartbeat(String brokerAddress) {
+        try {
+            request("heartbeat " + brokerAddress, null);
+        } catch (IOException e) {
+            System.out.println("Error sending heartbeat to Directory Service: " + e.getMessage());
+        }
+    }
 
-            // Send the register message with the broker's address
-            out.println("register " + brokerAddress);
-            //System.out.println("Broker registered with Directory Service at: " + directoryServiceAddress);
+    // Method to deregister a broker, e.g. when it shuts down
+    public void deregisterBroker(String brokerAddress) {
+        try {
+            request("deregister " + brokerAddress, null);
+        } catch (IOException e) {
+            System.out.println("Error deregistering broker with Directory Service: " + e.getMessage());
+        }
+    }
 
-            socket.close();
+    // Report a broker's load: client connections, messages queued for its clients and messages published per second
+    public void reportLoad(String brokerAddress, int connections, long queueDepth, long publishRate) {
+        try {
+            send("load " + brokerAddress + " " + connections + " " + queueDepth + " " + publishRate);  // Not answered
         } catch (IOException e) {
-            System.out.println("Error registering broker with Directory Service: " + e.getMessage());
+            System.out.println("Error reporting load to Directory Service: " + e.getMessage());
+        }
+    }
+
+    // Send a request and read its reply: the lines up to endMarker, or a single line if endMarker is null.
+    // A request that fails on a reused connection is retried once on a new one; all requests are idempotent.
+    private synchronized List<String> request(String request, String endMarker) throws IOException {
+        boolean reused = socket != null;
+        try {
+            return exchange(request, endMarker);
+        } catch (IOException e) {
+            closeConnection();
+            if (!reused) {
+                throw e;
+            }
+            return exchange(request, endMarker);
+        }
+    }
+
+    private List<String> exchange(String request, String endMarker) throws IOException {
+        send(request);
+        List<String> lines = new ArrayList<>();
+        String line;
+        while ((line = in.readLine()) != null) {
+            if (endMarker == null) {
+                lines.add(line);
+                return lines;
+            }
+            if (endMarker.equals(line)) {
+                return lines;
+            }
+            lines.add(line);
+        }
+        throw new IOException("Directory Service closed the connection.");
+    }
+
+    // Write one request line, opening the connection if needed
+    private synchronized void send(String request) throws IOException {
+        if (socket == null) {
+            openConnection();
+        }
+        out.println(request);
+        if (out.checkError()) {
+            closeConnection();
+            throw new IOException("Error writing to Directory Service.");
+        }
+    }
+
+    private void openConnection() throws IOException {
+        String[] addressParts = directoryServiceAddress.split(":");
+        Socket newSocket = new Socket();
+        try {
+            newSocket.connect(new InetSocketAddress(addressParts[0], Integer.parseInt(addressParts[1])), REQUEST_TIMEOUT_MS);
+            newSocket.setSoTimeout(REQUEST_TIMEOUT_MS);  // A stuck directory fails the request instead of hanging it
+            newSocket.setTcpNoDelay(true);
+            out = new PrintWriter(new OutputStreamWriter(newSocket.getOutputStream(), StandardCharsets.UTF_8), true);
+            in = new BufferedReader(new InputStreamReader(newSocket.getInputStream(), StandardCharsets.UTF_8));
+            socket = newSocket;
+        } catch (IOException | RuntimeException e) {
+            newSocket.close();
+            throw e;
+        }
+    }
+
+    // Drop the connection, e.g. after a timeout left a reply unread on it
+    private void closeConnection() {
+        if (socket != null) {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // Nothing left to do with it
+            }
+        }
+        socket = null;
+        out = null;
+        in = null;
+    }
+
+    // Keep the cluster map in step with the directory over a persistent watch connection.
+    // The watch runs on a daemon thread and reconnects (starting from a fresh snapshot) whenever it is lost.
+    public void watchMembership(ClusterMap clusterMap) {
+        Thread watchThread = new Thread(() -> {
+            while (true) {
+                try {
+                    runWatch(clusterMap);
+                } catch (IOException e) {
+                    System.out.println("Membership watch on Directory Service lost: " + e.getMessage());
+                }
+                try {
+                    Thread.sleep(WATCH_RETRY_DELAY_MS);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }, "directory-watch");
+        watchThread.setDaemon(true);
+        watchThread.start();
+    }
+
+    private void runWatch(ClusterMap clusterMap) throws IOException {
+        String[] addressParts = directoryServiceAddress.split(":");
+        try (Socket socket = new Socket(addressParts[0], Integer.parseInt(addressParts[1]));
+             PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
+             BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()))) {
+
+            out.println("watch");
+
+            String line;
+            while ((line = in.readLine()) != null) {
+                String[] parts = line.split(" ");
+                if (parts.length < 2) {
+                    continue;
+                }
+                long version = Long.parseLong(parts[1]);
+                switch (parts[0]) {
+                    case "members":
+                        clusterMap.applySnapshot(version, new HashSet<>(Arrays.asList(parts).subList(2, parts.length)));
+                        break;
+                    case "member_add":
+                    case "member_remove":
+                        if (parts.length == 3 && !clusterMap.applyDelta(version, parts[2], "member_add".equals(parts[0]))) {
+                            // A delta went missing, reconnect to start again from a snapshot
+                            System.out.println("Membership version gap at " + version + ", resynchronizing.");
+                            return;
+                        }
+                        break;
+                    default:
+                        System.out.println("Unknown membership update: " + line);
+                }
+            }
         }
     }
 }
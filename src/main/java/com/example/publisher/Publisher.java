@@ -5,65 +5,271 @@
  *
  * Description: The Publisher class represents a publisher in the publisher-subscriber system. Publishers
  * create topics and publish messages to them, which are distributed to all subscribed clients. The class
- * manages interaction between the publisher and the broker.
- * 
+ * manages interaction between the publisher and the broker. Every command is sent with a "#<id>" request ID
+ * and a reader thread matches the broker's replies to them, so publishes are pipelined: up to a window of
+ * them can be in flight at once, each completing asynchronously when its reply arrives. The publisher remembers
+ * the topics it created, and recreates them when its BrokerConnection fails over to another broker. Publishes
+ * carry a producer ID and sequence number, which lets the brokers drop repeats, so publishes still waiting for
+ * a reply when the broker is lost are simply sent again.
+ *
  * Date: 11/10/2024
  */
 package com.example.publisher;
 
-import java.io.BufferedReader;
+import com.example.client.BrokerConnection;
+import com.example.directory.DirectoryServiceClient;
+
 import java.io.IOException;
-import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class Publisher implements BrokerConnection.Listener {
+    private static final int DEFAULT_WINDOW = Integer.getInteger("publisher.window", 64);  // Commands in flight at once
+    private static final String RESTORE_TAG = "#restore";  // Request ID of a recreated topic
+    private static final int MAX_BATCH_MESSAGES = Integer.getInteger("publisher.maxBatchMessages", 1024);  // The broker's limit per publish_batch
+
+    private final String username;
+    private final DirectoryServiceClient directoryServiceClient;
+    private BrokerConnection connection;  // Set by connect()
+    private final Map<String, String> ownedTopics;  // topicId -> topicName of the topics this publisher created
+    private final int windowSize;
+    private final Semaphore window;  // One permit per command that may still be sent before a reply arrives
+    private final Map<Long, PendingRequest> pendingRequests;  // Request ID -> command waiting for its reply
+    private final AtomicLong nextRequestId;
+    private final String producerId;  // Names this publisher in the tags of its publishes
+    private final Object sendLock = new Object();  // Sequence numbers must reach the broker in the order they were taken
+    private long lastSequence;  // Guarded by sendLock
 
-public class Publisher {
-    private final PrintWriter out;
-    private final BufferedReader in;
+    private static final class PendingRequest {
+        final CompletableFuture<String> reply;
+        final String line;
+        final boolean resendable;  // A tagged publish, safe to send again after a failover
 
-    // Constructor to use existing PrintWriter and BufferedReader
-    public Publisher(PrintWriter out, BufferedReader in) {
-        this.out = out;
-        this.in = in;
+        PendingRequest(CompletableFuture<String> reply, String line, boolean resendable) {
+            this.reply = reply;
+            this.line = line;
+            this.resendable = resendable;
+        }
+    }
+
+    // A publisher client that finds its broker through the directory service
+    public Publisher(String username, DirectoryServiceClient directoryServiceClient) {
+        this(username, directoryServiceClient, DEFAULT_WINDOW);
+    }
+
+    public Publisher(String username, DirectoryServiceClient directoryServiceClient, int windowSize) {
+        this.username = username;
+        this.directoryServiceClient = directoryServiceClient;
+        this.ownedTopics = new ConcurrentHashMap<>();
+        this.windowSize = Math.max(1, windowSize);
+        this.window = new Semaphore(this.windowSize);
+        this.pendingRequests = new ConcurrentHashMap<>();
+        this.nextRequestId = new AtomicLong();
+        // Unique per run, so a restarted publisher does not have its fresh sequence numbers taken for repeats
+        this.producerId = username + "-" + Long.toHexString(ThreadLocalRandom.current().nextLong());
+    }
+
+    // Connect to preferredBroker (may be null) or any other live broker
+    public void connect(String preferredBroker) throws IOException {
+        connection = new BrokerConnection(username, "publisher", directoryServiceClient, this);
+        connection.connect(preferredBroker);
+    }
+
+    // Wait for the replies still outstanding, then close the connection
+    public void close() throws InterruptedException {
+        flush();
+        connection.close();
     }
 
     // Method to create a new topic
     public void createTopic(String topicId, String topicName) {
-        out.println("create " + topicId + " " + topicName);  // Send topic ID and topic name
-        receiveBrokerResponse();
+        String response = printResponse(sendCommand("create " + topicId + " " + topicName, false));  // Send topic ID and topic name
+        if (response != null && response.startsWith("success")) {
+            ownedTopics.put(topicId, topicName);
+        }
     }
 
-    // Method to publish a message to a topic, limited to 100 characters
+    // Method to publish a message to a topic, limited to 100 characters; the reply is printed when it arrives
     public void publishMessage(String topicId, String message) {
+        CompletableFuture<String> reply = publishAsync(topicId, message);
+        if (reply != null) {
+            reply.whenComplete((response, error) -> System.out.println(error == null ? response : "error: " + error.getMessage()));
+        }
+    }
+
+    // Send a publish without waiting for its reply; blocks only while the window is full.
+    // Returns null if the message was rejected before sending.
+    public CompletableFuture<String> publishAsync(String topicId, String message) {
         if (message.length() > 100) {
             System.out.println("Error: Message exceeds 100 characters. Please shorten your message.");
-            return;
+            return null;
         }
-        
-        out.println("publish " + topicId + " " + message);  // Send topic ID and message
-        receiveBrokerResponse();
+        return sendCommand("publish " + topicId + " " + message, true);  // Send topic ID and message
+    }
+
+    // Send many messages to a topic as publish_batch commands, each with a single reply, cutting the per-message
+    // overhead on the broker. A list longer than the broker accepts in one batch is sent as several, in order,
+    // and their replies are joined. Returns null if a message was rejected before sending.
+    public CompletableFuture<String> publishBatchAsync(String topicId, List<String> messages) {
+        for (String message : messages) {
+            if (message.length() > 100 || message.indexOf('\n') >= 0) {
+                System.out.println("Error: Batch messages must be single lines of at most 100 characters.");
+                return null;
+            }
+        }
+        if (messages.isEmpty()) {
+            return CompletableFuture.completedFuture("No messages to publish.");
+        }
+
+        CompletableFuture<String> replies = null;
+        for (int start = 0; start < messages.size(); start += MAX_BATCH_MESSAGES) {
+            List<String> chunk = messages.subList(start, Math.min(messages.size(), start + MAX_BATCH_MESSAGES));
+            // The messages follow the command line, one per line
+            CompletableFuture<String> reply = sendCommand("publish_batch " + topicId + " " + chunk.size() + "\n" + String.join("\n", chunk), true);
+            replies = replies == null ? reply : replies.thenCombine(reply, (previous, next) -> previous + "\n" + next);
+        }
+        return replies;
     }
 
     // Method to show subscriber count for a topic
     public void showSubscriberCount(String topicId) {
-        out.println("show " + topicId);  // Send topic ID
-        receiveBrokerResponse();
+        printResponse(sendCommand("show " + topicId, false));  // Send topic ID
     }
 
     // Method to delete a topic
     public void deleteTopic(String topicId) {
-        out.println("delete " + topicId);  // Send topic ID
-        receiveBrokerResponse();
+        String response = printResponse(sendCommand("delete " + topicId, false));  // Send topic ID
+        if (response != null && response.startsWith("success")) {
+            ownedTopics.remove(topicId);
+        }
     }
 
-    // Method to receive a response from the broker
-    private void receiveBrokerResponse() {
+    // Wait until every command sent so far has its reply
+    public void flush() throws InterruptedException {
+        window.acquire(windowSize);
+        window.release(windowSize);
+    }
+
+    // Send a command tagged with a new request ID, waiting for a free slot in the window first. A publish is also
+    // tagged with the next sequence number of this producer.
+    private CompletableFuture<String> sendCommand(String command, boolean publish) {
+        CompletableFuture<String> reply = new CompletableFuture<>();
         try {
-            String response;
-            while ((response = in.readLine()) != null) {
-                System.out.println(response);
-                break;  // Read only one response from the broker
+            window.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            reply.completeExceptionally(e);
+            return reply;
+        }
+        reply.whenComplete((response, error) -> window.release());
+
+        long requestId = nextRequestId.incrementAndGet();
+        try {
+            synchronized (sendLock) {
+                String line = "#" + requestId + " " + (publish ? "pid=" + producerId + ":" + (++lastSequence) + " " : "") + command;
+                // Registered only once the command is bound for the current broker, so losing that broker is noticed
+                connection.send(line, () -> pendingRequests.put(requestId, new PendingRequest(reply, line, publish)));
             }
         } catch (IOException e) {
-            e.printStackTrace();
+            pendingRequests.remove(requestId);
+            reply.completeExceptionally(e);
+        }
+        return reply;
+    }
+
+    // Method to receive the responses from the broker and complete the matching requests
+    @Override
+    public void onLine(String response) {
+        int space = response.indexOf(' ');
+        if (response.startsWith(RESTORE_TAG + " ")) {
+            // Recreating a topic that the other brokers still have is expected to fail
+            String result = response.substring(space + 1);
+            if (!result.contains("already exists")) {
+                System.out.println(result);
+            }
+            return;
+        }
+        PendingRequest request = null;
+        if (response.startsWith("#") && space > 1) {
+            try {
+                request = pendingRequests.remove(Long.parseLong(response.substring(1, space)));
+            } catch (NumberFormatException e) {
+                // Not a request ID; printed as it is below
+            }
+        }
+        if (request != null) {
+            request.reply.complete(response.substring(space + 1));
+        } else {
+            System.out.println(response);
+        }
+    }
+
+    @Override
+    public void onConnected(String brokerAddress, BrokerConnection brokerConnection) {
+        // Topics are replicated to every broker, but one created just before a crash may not have reached them
+        for (Map.Entry<String, String> topic : ownedTopics.entrySet()) {
+            try {
+                brokerConnection.send(RESTORE_TAG + " create " + topic.getKey() + " " + topic.getValue());
+            } catch (IOException e) {
+                System.err.println("Error restoring topic " + topic.getKey() + ": " + e.getMessage());
+            }
+        }
+
+        // Then the publishes the lost broker never answered, in their original order; any it did publish are
+        // recognised by their tags and dropped
+        List<Long> resends = new ArrayList<>();
+        for (Map.Entry<Long, PendingRequest> pending : pendingRequests.entrySet()) {
+            if (pending.getValue().resendable) {
+                resends.add(pending.getKey());
+            }
+        }
+        Collections.sort(resends);
+        for (Long requestId : resends) {
+            PendingRequest request = pendingRequests.get(requestId);
+            try {
+                brokerConnection.send(request.line);
+            } catch (IOException e) {
+                pendingRequests.remove(requestId);
+                request.reply.completeExceptionally(e);
+            }
+        }
+        if (!resends.isEmpty()) {
+            System.out.println("Resent " + resends.size() + " unacknowledged publishes to broker " + brokerAddress);
+        }
+    }
+
+    @Override
+    public void onDisconnected(String brokerAddress) {
+        // Whether the broker acted on the commands still waiting for a reply is unknown. Publishes are resent once
+        // connected again; the other commands fail rather than risk running twice.
+        failPendingRequests();
+    }
+
+    private void failPendingRequests() {
+        for (Map.Entry<Long, PendingRequest> pending : pendingRequests.entrySet()) {
+            if (!pending.getValue().resendable && pendingRequests.remove(pending.getKey(), pending.getValue())) {
+                pending.getValue().reply.completeExceptionally(new IOException("Connection to broker lost before the reply arrived."));
+            }
+        }
+    }
+
+    // Wait for a reply and print it; returns null if the command failed
+    private String printResponse(CompletableFuture<String> reply) {
+        try {
+            String response = reply.join();
+            System.out.println(response);
+            return response;
+        } catch (CompletionException e) {
+            System.out.println("error: " + e.getCause().getMessage());
+            return null;
         }
     }
 }
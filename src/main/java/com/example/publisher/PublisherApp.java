@@ -17,16 +17,11 @@ import com.example.directory.DirectoryServiceClient;
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
-import java.io.OutputStreamWriter;
-import java.io.PrintWriter;
-import java.net.Socket;
-import java.util.ArrayList;
-import java.util.List;
 
 public class PublisherApp {
     public static void main(String[] args) {
-        if (args.length != 3) {
-            System.out.println("Usage: java -jar publisher.jar <username> <directory_service_ip> <directory_service_port>");
+        if (args.length != 3 && args.length != 4) {
+            System.out.println("Usage: java -jar publisher.jar <username> <directory_service_ip> <directory_service_port> [<broker_ip:port>]");
             return;
         }
 
@@ -34,54 +29,19 @@ public class PublisherApp {
             String username = args[0];
             String directoryServiceIP = args[1];
             String directoryServicePort = args[2];
+            String preferredBroker = args.length == 4 ? args[3] : null;
 
-            // Initialize DirectoryServiceClient to fetch available brokers
+            // The connection finds a live broker through the directory service, and fails over to another if it dies
             DirectoryServiceClient directoryServiceClient = new DirectoryServiceClient(directoryServiceIP + ":" + directoryServicePort);
-            List<String> brokerAddresses = new ArrayList<>(directoryServiceClient.getActiveBrokers());
-
-            if (brokerAddresses.isEmpty()) {
-                System.out.println("No active brokers available.");
+            Publisher publisher = new Publisher(username, directoryServiceClient);
+            try {
+                publisher.connect(preferredBroker);
+            } catch (IOException e) {
+                System.out.println("No active brokers available: " + e.getMessage());
                 return;
             }
-
-            // Print the list of available brokers
-            System.out.println("Available brokers:");
-            for (int i = 0; i < brokerAddresses.size(); i++) {
-                System.out.println((i + 1) + ". " + brokerAddresses.get(i));
-            }
-
-            // Prompt the user to select a broker
             BufferedReader reader = new BufferedReader(new InputStreamReader(System.in));
-            System.out.print("Select a broker (enter the number): ");
-            String input = reader.readLine();
-
-            int selectedBrokerIndex = Integer.parseInt(input) - 1;
-            if (selectedBrokerIndex < 0 || selectedBrokerIndex >= brokerAddresses.size()) {
-                System.out.println("Invalid broker selection.");
-                return;
-            }
-
-            // Extract selected broker's IP and port
-            String selectedBroker = brokerAddresses.get(selectedBrokerIndex);
-            String[] brokerDetails = selectedBroker.split(":");
-            String brokerHost = brokerDetails[0];
-            int brokerPort = Integer.parseInt(brokerDetails[1]);
-
-            // Establish a connection to the selected broker
-            Socket socket = new Socket(brokerHost, brokerPort);
-            PrintWriter out = new PrintWriter(new OutputStreamWriter(socket.getOutputStream()), true);
-            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-
-            // Perform handshake with the broker by sending HANDSHAKE_INIT with username and connection type
-            if (!performHandshake(out, in, socket, username)) {
-                System.err.println("Handshake with broker failed. Closing connection.");
-                socket.close();
-                return;
-            }
-
-            // Now the Publisher can interact with the broker
-            Publisher publisher = new Publisher(out, in);
-            System.out.println("Connected to broker at " + brokerHost + ":" + brokerPort);
+            String input;
 
             // Handle publisher commands
             System.out.println("Please select a command: create, publish, show, delete.");
@@ -141,38 +101,11 @@ public class PublisherApp {
                 }
             }
 
-            // Close the connection when done
-            socket.close();
+            // Wait for the replies to the publishes still in flight, then close the connection
+            publisher.close();
 
         } catch (Exception e) {
             e.printStackTrace();
         }
     }
-
-    private static boolean performHandshake(PrintWriter out, BufferedReader in, Socket brokerSocket, String username) throws IOException {
-        // Retrieve and print socket information
-        String localAddress = brokerSocket.getLocalAddress().toString();
-        int localPort = brokerSocket.getLocalPort();
-        String remoteAddress = brokerSocket.getRemoteSocketAddress().toString();
-        System.out.println("Local Address: " + localAddress + ", Local Port: " + localPort);
-        System.out.println("Remote Address: " + remoteAddress);
-
-        // Send handshake initiation message to the broker with username and connection type
-        out.println("HANDSHAKE_INIT " + username + " publisher");
-        out.flush();  // Ensure the message is sent
-        System.out.println("Sent HANDSHAKE_INIT to broker at IP: " + remoteAddress);
-
-        // Wait for the broker to respond with a handshake acknowledgment
-        String ack = in.readLine();
-        System.out.println("Received from broker: " + ack);
-
-        // Check if the handshake was successful
-        if ("HANDSHAKE_ACK".equals(ack)) {
-            System.out.println("Handshake successful with broker at IP: " + remoteAddress);
-            return true;
-        } else {
-            System.err.println("Handshake failed with broker at IP: " + remoteAddress + ". Received: " + ack);
-            return false;
-        }
-    }
 }
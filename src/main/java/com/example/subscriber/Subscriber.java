@@ -5,30 +5,58 @@
  *
  * Description: The Subscriber class represents a subscriber in the publisher-subscriber system. Subscribers
  * can subscribe to topics and receive messages published by publishers. The class stores the subscriber's
- * identity and manages their interaction with the broker.
- * 
+ * identity and manages their interaction with the broker. It remembers the client's subscriptions and the
+ * sequence number of the last message received on each, so that, when its BrokerConnection fails over to another
+ * broker, they are resumed there from the next message on.
+ *
  * Date: 11/10/2024
  */
 package com.example.subscriber;
 
+import com.example.client.BrokerConnection;
+import com.example.directory.DirectoryServiceClient;
+
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.text.SimpleDateFormat;
 import java.util.Date;
+import java.util.Map;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.LinkedBlockingQueue;
 
-public class Subscriber {
+public class Subscriber implements BrokerConnection.Listener {
+    private static final String RESTORE_TAG = "#restore:";  // Request ID of a resubscription, followed by the topic ID
+    private static final String SEQ_MARKER = ": Message Received (seq ";  // In every delivered message, after "<topicId>:<topicName>"
+
     private final String username;
-    private final PrintWriter out;
-    private final BufferedReader in;
+    private final DirectoryServiceClient directoryServiceClient;  // Null for the broker's own record of a subscriber
+    private BrokerConnection connection;  // Set by connect()
+    private final Map<String, Boolean> subscriptions = new ConcurrentHashMap<>();  // topicId -> conflated
+    private final Map<String, Long> lastSeqs = new ConcurrentHashMap<>();  // topicId -> sequence number of the last message received
     private final BlockingQueue<String> commandResponseQueue = new LinkedBlockingQueue<>(); // Queue for command responses
 
+    // The broker's record of a subscriber; it has no connection of its own
     public Subscriber(String username, PrintWriter out, BufferedReader in) {
         this.username = username;
-        this.out = out;
-        this.in = in;
+        this.directoryServiceClient = null;
+    }
+
+    // A subscriber client that finds its broker through the directory service
+    public Subscriber(String username, DirectoryServiceClient directoryServiceClient) {
+        this.username = username;
+        this.directoryServiceClient = directoryServiceClient;
+    }
+
+    // Connect to preferredBroker (may be null) or any other live broker
+    public void connect(String preferredBroker) throws IOException {
+        connection = new BrokerConnection(username, "subscriber", directoryServiceClient, this);
+        connection.connect(preferredBroker);
+    }
+
+    public void close() {
+        connection.close();
     }
 
     // Method to receive a message on a topic and display it in the correct format
@@ -45,20 +73,31 @@ public class Subscriber {
         System.out.println(message);
     }
 
-    // Subscribe to a topic
-    public void subscribe(String topicName) {
-        out.println("sub " + topicName);  // Send subscribe command and topic name
+    // Subscribe to a topic; arguments is "{topic_id} [from {seq}] [conflate]"
+    public void subscribe(String arguments) {
+        String[] parts = arguments.split(" ");
+        subscriptions.put(parts[0], "conflate".equals(parts[parts.length - 1]));
+        lastSeqs.remove(parts[0]);
+        send("sub " + arguments);  // Send subscribe command and topic name
     }
 
     // Unsubscribe from a topic
     public void unsubscribe(String topicName) {
-        out.println("unsub " + topicName);  // Send unsubscribe command and topic name
+        subscriptions.remove(topicName);
+        lastSeqs.remove(topicName);
+        send("unsub " + topicName);  // Send unsubscribe command and topic name
+    }
+
+    // Ask the broker to resend a topic's logged messages from an offset; they arrive like live messages
+    public void replay(String topicName, String fromOffset) {
+        send("replay " + topicName + " " + fromOffset);
     }
 
     // Method to list all available topics
     public void listAllTopics() {
-        out.println("list_all");  // Send request to broker to list all available topics
-        out.flush();
+        if (!send("list_all")) {  // Send request to broker to list all available topics
+            return;
+        }
 
         try {
             String response;
@@ -73,8 +112,9 @@ public class Subscriber {
 
     // Method to show current subscriptions
     public void showCurrentSubscriptions() {
-        out.println("current");
-        out.flush();
+        if (!send("current")) {
+            return;
+        }
 
         try {
             String response;
@@ -96,4 +136,87 @@ public class Subscriber {
             System.err.println("Error adding response to queue: " + e.getMessage());
         }
     }
+
+    @Override
+    public void onLine(String brokerMessage) {
+        if (brokerMessage.startsWith("Topic ID:") || brokerMessage.equals("END")) {
+            // This is part of a command response (like list_all)
+            addCommandResponse(brokerMessage);
+        } else if (brokerMessage.startsWith(RESTORE_TAG)) {
+            handleRestoreReply(brokerMessage);
+        } else {
+            if (brokerMessage.startsWith("Topic ") && brokerMessage.endsWith(" has been deleted.")) {
+                subscriptions.remove(brokerMessage.split(" ")[1]);
+                lastSeqs.remove(brokerMessage.split(" ")[1]);
+            } else {
+                recordSequence(brokerMessage);
+            }
+            // This is an asynchronous message
+            handleAsyncMessage(brokerMessage);
+        }
+    }
+
+    @Override
+    public void onConnected(String brokerAddress, BrokerConnection brokerConnection) {
+        // Subscriptions are held by the broker a client is connected to, so make them again on the new one, resuming
+        // after the last message received; every broker numbers a topic's messages the same way
+        for (Map.Entry<String, Boolean> subscription : subscriptions.entrySet()) {
+            String topicId = subscription.getKey();
+            Long lastSeq = lastSeqs.get(topicId);
+            String command = RESTORE_TAG + topicId + " sub " + topicId + (lastSeq != null ? " from " + (lastSeq + 1) : "")
+                    + (subscription.getValue() ? " conflate" : "");
+            try {
+                brokerConnection.send(command);
+            } catch (IOException e) {
+                System.err.println("Error restoring subscription to " + topicId + ": " + e.getMessage());
+            }
+        }
+    }
+
+    @Override
+    public void onDisconnected(String brokerAddress) {
+        // Messages published while failing over are not delivered; the subscriptions are restored on reconnect
+    }
+
+    // "<timestamp> <topicId>:<topicName>: Message Received (seq <n>): <message>"; replayed messages count too,
+    // but never move a topic's position back
+    private void recordSequence(String line) {
+        int marker = line.indexOf(SEQ_MARKER);
+        if (marker < 0) {
+            return;
+        }
+        int end = line.indexOf(')', marker);
+        String topic = line.substring(line.lastIndexOf(' ', marker - 1) + 1, marker);
+        String topicId = topic.substring(0, Math.max(0, topic.indexOf(':')));
+        if (end < 0 || !subscriptions.containsKey(topicId)) {
+            return;
+        }
+        try {
+            lastSeqs.merge(topicId, Long.parseLong(line.substring(marker + SEQ_MARKER.length(), end)), Math::max);
+        } catch (NumberFormatException e) {
+            // Not a delivered message after all
+        }
+    }
+
+    private void handleRestoreReply(String reply) {
+        int space = reply.indexOf(' ');
+        String topicId = reply.substring(RESTORE_TAG.length(), space);
+        String result = reply.substring(space + 1);
+        if (result.startsWith("error") && !result.contains("already subscribed")) {
+            subscriptions.remove(topicId);  // E.g. the topic was deleted in the meantime
+            System.out.println("Could not restore subscription to topic " + topicId + ": " + result);
+        } else {
+            System.out.println("Restored subscription to topic: " + topicId);
+        }
+    }
+
+    private boolean send(String command) {
+        try {
+            connection.send(command);
+            return true;
+        } catch (IOException e) {
+            System.err.println("Error sending command to broker: " + e.getMessage());
+            return false;
+        }
+    }
 }